@@ -24,6 +24,7 @@ public abstract class MOOSApp implements Runnable {
     private long mPeriod;
 
     private MOOSCommClient mComms;
+    private int mIOMode = MOOSCommClient.POLLING_IO_MODE;
     private ArrayList<MOOSMsg> mNewMail;
 
     private boolean mDiscReq = false;
@@ -50,6 +51,12 @@ public abstract class MOOSApp implements Runnable {
             this.mPeriod = (long) (1000/t);
     }
 
+    //Must be set before run(). ASYNC_IO_MODE sends mail as soon as it is posted and fills the
+    //inbox as soon as mail arrives, rather than once per comms tick.
+    public void setIOMode(int mode) {
+        mIOMode = mode;
+    }
+
     public synchronized void requestDisconnect() {
         mDiscReq = true;
     }
@@ -156,6 +163,7 @@ public abstract class MOOSApp implements Runnable {
             throw(new Exception("Server host must be configured!"));
         }
         mComms=new MOOSCommClient(mServerHost,mServerPort);
+        mComms.setIOMode(mIOMode);
 
         if(mName != null){
             mComms.setName(mName);
@@ -0,0 +1,476 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Packs double[], float[] and int[] arrays into MOOS_BINARY_STRING payloads, so vectors and matrices can be
+ * published without formatting them as "[3x1]{a,b,c}" strings, and unpacks them again.
+ *
+ * The payload is an 8 byte header followed by the elements, all little endian (MOOSMsg.MOOS_BYTE_ORDER):
+ *
+ *   'M' 'A' type flags count(int) elements...
+ *
+ * Plain payloads hold the elements as they are, so a receiver can read them through asDoubleBuffer() etc. without
+ * copying. With FLAG_DELTA set each element is instead stored as its difference from the one before, as a
+ * variable length integer: the XOR of the bit patterns for doubles and floats (neighbouring values in a slowly
+ * varying series share their sign, exponent and top of the mantissa, so the XOR is small), and the zigzag encoded
+ * difference for ints. That suits series such as depth profiles or range scans; it is lossless but has to be
+ * decoded element by element.
+ *
+ * client.notify("SONAR_RANGES", ranges, -1);
+ * ...
+ * double[] ranges = MOOSArrayCodec.getDoubles(msg);
+ */
+public final class MOOSArrayCodec {
+
+    public static final byte TYPE_DOUBLE = 1;
+    public static final byte TYPE_FLOAT = 2;
+    public static final byte TYPE_INT = 3;
+    public static final byte FLAG_DELTA = 1;
+    public static final int HEADER_SIZE = 8;
+    protected static final byte MAGIC_0 = 'M';
+    protected static final byte MAGIC_1 = 'A';
+
+    private MOOSArrayCodec() {
+    }
+
+    /**
+     * @param values
+     * @param delta whether to delta encode the values
+     * @return the payload, for notify(String, byte[], double)
+     */
+    public static byte[] encode(double[] values, boolean delta) {
+        ByteBuffer buffer = MOOSMsg.allocate(encodedSize(values, delta));
+        encode(values, delta, buffer);
+        return buffer.array();
+    }
+
+    public static byte[] encode(float[] values, boolean delta) {
+        ByteBuffer buffer = MOOSMsg.allocate(encodedSize(values, delta));
+        encode(values, delta, buffer);
+        return buffer.array();
+    }
+
+    public static byte[] encode(int[] values, boolean delta) {
+        ByteBuffer buffer = MOOSMsg.allocate(encodedSize(values, delta));
+        encode(values, delta, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * @param values
+     * @param delta
+     * @return the bytes encode() will write
+     */
+    public static int encodedSize(double[] values, boolean delta) {
+        if (!delta) {
+            return HEADER_SIZE + values.length * 8;
+        }
+        int size = HEADER_SIZE;
+        long previous = 0;
+        for (double value : values) {
+            long bits = Double.doubleToRawLongBits(value);
+            size += varLongSize(bits ^ previous);
+            previous = bits;
+        }
+        return size;
+    }
+
+    public static int encodedSize(float[] values, boolean delta) {
+        if (!delta) {
+            return HEADER_SIZE + values.length * 4;
+        }
+        int size = HEADER_SIZE;
+        int previous = 0;
+        for (float value : values) {
+            int bits = Float.floatToRawIntBits(value);
+            size += varLongSize((bits ^ previous) & 0xFFFFFFFFL);
+            previous = bits;
+        }
+        return size;
+    }
+
+    public static int encodedSize(int[] values, boolean delta) {
+        if (!delta) {
+            return HEADER_SIZE + values.length * 4;
+        }
+        int size = HEADER_SIZE;
+        int previous = 0;
+        for (int value : values) {
+            size += varLongSize(zigzag((long) value - previous));
+            previous = value;
+        }
+        return size;
+    }
+
+    /**
+     * Write a payload into a buffer, e.g. one being reused for every publish.
+     * @param values
+     * @param delta
+     * @param buffer must have encodedSize() bytes remaining, written little endian whatever its byte order
+     */
+    public static void encode(double[] values, boolean delta, ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(MOOSMsg.MOOS_BYTE_ORDER);
+        try {
+            putHeader(buffer, TYPE_DOUBLE, delta, values.length);
+            if (delta) {
+                long previous = 0;
+                for (double value : values) {
+                    long bits = Double.doubleToRawLongBits(value);
+                    putVarLong(buffer, bits ^ previous);
+                    previous = bits;
+                }
+            } else {
+                for (double value : values) {
+                    buffer.putDouble(value);
+                }
+            }
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    public static void encode(float[] values, boolean delta, ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(MOOSMsg.MOOS_BYTE_ORDER);
+        try {
+            putHeader(buffer, TYPE_FLOAT, delta, values.length);
+            if (delta) {
+                int previous = 0;
+                for (float value : values) {
+                    int bits = Float.floatToRawIntBits(value);
+                    putVarLong(buffer, (bits ^ previous) & 0xFFFFFFFFL);
+                    previous = bits;
+                }
+            } else {
+                for (float value : values) {
+                    buffer.putFloat(value);
+                }
+            }
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    public static void encode(int[] values, boolean delta, ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(MOOSMsg.MOOS_BYTE_ORDER);
+        try {
+            putHeader(buffer, TYPE_INT, delta, values.length);
+            if (delta) {
+                int previous = 0;
+                for (int value : values) {
+                    putVarLong(buffer, zigzag((long) value - previous));
+                    previous = value;
+                }
+            } else {
+                for (int value : values) {
+                    buffer.putInt(value);
+                }
+            }
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    protected static void putHeader(ByteBuffer buffer, byte type, boolean delta, int count) {
+        buffer.put(MAGIC_0).put(MAGIC_1).put(type).put(delta ? FLAG_DELTA : 0).putInt(count);
+    }
+
+    /**
+     * @param payload a binary payload, from its position
+     * @return whether it holds an array written by this class
+     */
+    public static boolean isArray(ByteBuffer payload) {
+        int p = payload.position();
+        return payload.remaining() >= HEADER_SIZE && payload.get(p) == MAGIC_0 && payload.get(p + 1) == MAGIC_1
+                && payload.get(p + 2) >= TYPE_DOUBLE && payload.get(p + 2) <= TYPE_INT;
+    }
+
+    /**
+     * @param msg
+     * @return whether msg is a binary message holding an array
+     */
+    public static boolean isArray(MOOSMsg msg) {
+        ByteBuffer payload = msg.getBinaryBuffer();
+        return msg.isDataType(MOOSMsg.MOOS_BINARY_STRING) && payload != null && isArray(payload);
+    }
+
+    /**
+     * @param payload
+     * @return TYPE_DOUBLE, TYPE_FLOAT or TYPE_INT
+     */
+    public static byte getType(ByteBuffer payload) {
+        checkHeader(payload);
+        return payload.get(payload.position() + 2);
+    }
+
+    /**
+     * @param payload
+     * @return whether the elements are delta encoded, and so can't be viewed with asDoubleBuffer() etc.
+     */
+    public static boolean isDelta(ByteBuffer payload) {
+        checkHeader(payload);
+        return (payload.get(payload.position() + 3) & FLAG_DELTA) != 0;
+    }
+
+    /**
+     * The count comes off the wire, so it is checked against the bytes actually there before anyone allocates
+     * for it: a plain array needs a whole element per count, a delta encoded one at least a byte.
+     * @param payload
+     * @return the number of elements
+     */
+    public static int getLength(ByteBuffer payload) {
+        checkHeader(payload);
+        int length = payload.duplicate().order(MOOSMsg.MOOS_BYTE_ORDER).getInt(payload.position() + 4);
+        int available = payload.remaining() - HEADER_SIZE;
+        int max = isDelta(payload) ? available : available / elementSize(getType(payload));
+        if (length < 0 || length > max) {
+            throw new IllegalArgumentException("MOOSArrayCodec: corrupt array length " + length);
+        }
+        return length;
+    }
+
+    protected static int elementSize(byte type) {
+        return type == TYPE_DOUBLE ? 8 : 4;
+    }
+
+    protected static void checkHeader(ByteBuffer payload) {
+        if (!isArray(payload)) {
+            throw new IllegalArgumentException("MOOSArrayCodec: not an array payload");
+        }
+    }
+
+    /**
+     * View a plain double array in place, without copying. For a received message the view points into the
+     * receive buffer, see MOOSMsg.getBinaryBuffer().
+     * @param payload
+     * @return the elements
+     */
+    public static DoubleBuffer asDoubleBuffer(ByteBuffer payload) {
+        return elements(payload, TYPE_DOUBLE).asDoubleBuffer();
+    }
+
+    public static FloatBuffer asFloatBuffer(ByteBuffer payload) {
+        return elements(payload, TYPE_FLOAT).asFloatBuffer();
+    }
+
+    public static IntBuffer asIntBuffer(ByteBuffer payload) {
+        return elements(payload, TYPE_INT).asIntBuffer();
+    }
+
+    protected static ByteBuffer elements(ByteBuffer payload, byte type) {
+        if (getType(payload) != type || isDelta(payload)) {
+            throw new IllegalArgumentException("MOOSArrayCodec: payload is not a plain array of type " + type);
+        }
+        ByteBuffer elements = payload.duplicate();
+        elements.position(payload.position() + HEADER_SIZE);
+        elements.limit(elements.position() + getLength(payload) * elementSize(type));
+        return elements.slice().order(MOOSMsg.MOOS_BYTE_ORDER);
+    }
+
+    /**
+     * @param msg a binary message holding an array of any type
+     * @return its elements as doubles
+     */
+    public static double[] getDoubles(MOOSMsg msg) {
+        return getDoubles(binaryPayload(msg), null);
+    }
+
+    public static float[] getFloats(MOOSMsg msg) {
+        return getFloats(binaryPayload(msg), null);
+    }
+
+    /**
+     * @param msg a binary message holding an array of ints
+     * @return its elements
+     */
+    public static int[] getInts(MOOSMsg msg) {
+        return getInts(binaryPayload(msg), null);
+    }
+
+    protected static ByteBuffer binaryPayload(MOOSMsg msg) {
+        ByteBuffer payload = msg.getBinaryBuffer();
+        if (payload == null) {
+            throw new IllegalArgumentException("MOOSArrayCodec: " + msg.getKey() + " has no binary payload");
+        }
+        return payload;
+    }
+
+    /**
+     * Decode an array of any type into doubles.
+     * @param payload the payload, which is not consumed
+     * @param into reused if it is the right length, may be null
+     * @return the elements
+     */
+    public static double[] getDoubles(ByteBuffer payload, double[] into) {
+        int length = getLength(payload);
+        double[] values = into != null && into.length == length ? into : new double[length];
+        byte type = getType(payload);
+        if (!isDelta(payload)) {
+            if (type == TYPE_DOUBLE) {
+                asDoubleBuffer(payload).get(values);
+            } else if (type == TYPE_FLOAT) {
+                FloatBuffer floats = asFloatBuffer(payload);
+                for (int i = 0; i < length; i++) {
+                    values[i] = floats.get(i);
+                }
+            } else {
+                IntBuffer ints = asIntBuffer(payload);
+                for (int i = 0; i < length; i++) {
+                    values[i] = ints.get(i);
+                }
+            }
+            return values;
+        }
+        ByteBuffer in = payload.duplicate();
+        in.position(payload.position() + HEADER_SIZE);
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous = nextDelta(in, type, previous);
+            values[i] = type == TYPE_DOUBLE ? Double.longBitsToDouble(previous)
+                    : type == TYPE_FLOAT ? Float.intBitsToFloat((int) previous) : (int) previous;
+        }
+        return values;
+    }
+
+    /**
+     * Decode a float or int array into floats.
+     * @param payload the payload, which is not consumed
+     * @param into reused if it is the right length, may be null
+     * @return the elements
+     */
+    public static float[] getFloats(ByteBuffer payload, float[] into) {
+        byte type = getType(payload);
+        if (type == TYPE_DOUBLE) {
+            throw new IllegalArgumentException("MOOSArrayCodec: won't narrow doubles to floats, use getDoubles()");
+        }
+        int length = getLength(payload);
+        float[] values = into != null && into.length == length ? into : new float[length];
+        if (!isDelta(payload) && type == TYPE_FLOAT) {
+            asFloatBuffer(payload).get(values);
+            return values;
+        }
+        if (!isDelta(payload)) {
+            IntBuffer ints = asIntBuffer(payload);
+            for (int i = 0; i < length; i++) {
+                values[i] = ints.get(i);
+            }
+            return values;
+        }
+        ByteBuffer in = payload.duplicate();
+        in.position(payload.position() + HEADER_SIZE);
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous = nextDelta(in, type, previous);
+            values[i] = type == TYPE_FLOAT ? Float.intBitsToFloat((int) previous) : (int) previous;
+        }
+        return values;
+    }
+
+    /**
+     * @param payload an int array, which is not consumed
+     * @param into reused if it is the right length, may be null
+     * @return the elements
+     */
+    public static int[] getInts(ByteBuffer payload, int[] into) {
+        if (getType(payload) != TYPE_INT) {
+            throw new IllegalArgumentException("MOOSArrayCodec: not an int array");
+        }
+        int length = getLength(payload);
+        int[] values = into != null && into.length == length ? into : new int[length];
+        if (!isDelta(payload)) {
+            asIntBuffer(payload).get(values);
+            return values;
+        }
+        ByteBuffer in = payload.duplicate();
+        in.position(payload.position() + HEADER_SIZE);
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous = nextDelta(in, TYPE_INT, previous);
+            values[i] = (int) previous;
+        }
+        return values;
+    }
+
+    /**
+     * @return the bits of the next double or float, or the next int, given the previous one
+     */
+    protected static long nextDelta(ByteBuffer in, byte type, long previous) {
+        long delta = getVarLong(in);
+        if (type == TYPE_INT) {
+            return previous + ((delta >>> 1) ^ -(delta & 1));
+        }
+        return previous ^ delta;
+    }
+
+    protected static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    protected static int varLongSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    protected static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    protected static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("MOOSArrayCodec: corrupt delta encoded array");
+    }
+}
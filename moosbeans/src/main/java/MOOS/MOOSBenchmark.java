@@ -0,0 +1,605 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Micro benchmarks for the comms code. These are plain main() programs in the same spirit as the test code in
+ * MOOSCommClient.main(), and are meant to be run on the device (e.g. from a test app) since that is where GC and
+ * thread costs matter. Results are printed to System.out.
+ *
+ * Usage: MOOSBenchmark reactor [connections...]
+ *        MOOSBenchmark pool [packets]
+ *        MOOSBenchmark framer [packets] [seed]
+ *        MOOSBenchmark compress [packets] [threshold]
+ *        MOOSBenchmark encode [messages]
+ *        MOOSBenchmark footprint [messages]
+ *        MOOSBenchmark keyvalue [messages]
+ */
+public class MOOSBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String which = args.length > 0 ? args[0] : "reactor";
+        if (which.equals("reactor")) {
+            int[] counts = {10, 100, 250, 500};
+            if (args.length > 1) {
+                counts = new int[args.length - 1];
+                for (int i = 1; i < args.length; i++) {
+                    counts[i - 1] = Integer.parseInt(args[i]);
+                }
+            }
+            for (int n : counts) {
+                reactorScaling(n, MOOSReactor.DEFAULT_LOOP_COUNT);
+            }
+        } else if (which.equals("pool")) {
+            bufferPool(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+        } else if (which.equals("framer")) {
+            framer(args.length > 1 ? Integer.parseInt(args[1]) : 100000, args.length > 2 ? Long.parseLong(args[2]) : 1);
+        } else if (which.equals("compress")) {
+            int packets = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+            compression(packets, MOOSCommPkt.COMPRESSION_DISABLED);
+            compression(packets, args.length > 2 ? Integer.parseInt(args[2]) : 256);
+        } else if (which.equals("encode")) {
+            encoding(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+        } else if (which.equals("footprint")) {
+            footprint(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+        } else if (which.equals("keyvalue")) {
+            keyValue(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+        } else {
+            System.out.println("Unknown benchmark: " + which);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Attach connections to one shared reactor and report the number of threads in the JVM and the time for a
+     * notify to be echoed back to every connection by a loopback MOOSDB.
+     * @param connections number of MOOSCommClients to create
+     * @param loops number of selector threads in the reactor
+     */
+    public static void reactorScaling(int connections, int loops) throws Exception {
+        LoopbackDB db = new LoopbackDB(0);
+        db.setEnable(true);
+        int threadsBefore = Thread.activeCount();
+
+        MOOSReactor reactor = new MOOSReactor(loops);
+        reactor.setEnable(true);
+        ArrayList<MOOSCommClient> clients = new ArrayList<MOOSCommClient>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            MOOSCommClient client = new MOOSCommClient("127.0.0.1", db.getPort());
+            client.setName("bench" + i);
+            client.setReactor(reactor);
+            client.setEnable(true);
+            clients.add(client);
+        }
+        while (reactor.getClientCount() < connections) {
+            Thread.sleep(1);
+        }
+        double connectMs = (System.nanoTime() - start) / 1e6;
+        int threadsAfter = Thread.activeCount();
+
+        // one notify per client, wait until each has had its own message reflected back
+        int rounds = 20;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (MOOSCommClient client : clients) {
+                client.notify("BENCH", (double) r, -1);
+            }
+            for (MOOSCommClient client : clients) {
+                while (MOOSCommClient.findNewestMsg(client.getNewMsgs(), "BENCH") == null) {
+                    Thread.sleep(0, 100000);
+                }
+            }
+        }
+        double roundMs = (System.nanoTime() - start) / 1e6 / rounds;
+
+        System.out.println(String.format("reactor: %d connections, %d loops: connect %.1f ms, threads %d -> %d, echo round to all %.3f ms",
+                connections, loops, connectMs, threadsBefore, threadsAfter, roundMs));
+
+        for (MOOSCommClient client : clients) {
+            client.setEnable(false);
+        }
+        reactor.setEnable(false);
+        db.setEnable(false);
+    }
+
+    /**
+     * Receive packets through one reused MOOSCommPkt and report how many buffers the pool had to create. After the
+     * first packet of each size this should not grow at all, and the benchmark fails if it does.
+     * @param packets number of packets to send through a local socket pair
+     */
+    public static void bufferPool(int packets) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel tx = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.socket().getLocalPort()));
+        SocketChannel rx = server.accept();
+        rx.configureBlocking(false);
+
+        ArrayList<MOOSMsg> msgs = new ArrayList<MOOSMsg>();
+        msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "NAV_X", 1.0, 1.0));
+        msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "NODE_REPORT", "NAME=phone,X=1,Y=2,SPD=0.5,HDG=90", 1.0));
+        MOOSCommPkt pktTx = new MOOSCommPkt();
+        ByteBuffer[] segments = pktTx.serializeGathering(msgs);
+
+        MOOSBufferPool pool = new MOOSBufferPool();
+        MOOSCommObject comms = new MOOSCommObject();
+        MOOSCommPkt pktRx = new MOOSCommPkt(pool);
+        ArrayList<MOOSMsg> received = new ArrayList<MOOSMsg>();
+        long warm = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            for (ByteBuffer b : segments) {
+                b.rewind();
+            }
+            comms.sendPkt(tx, segments);
+            while (!comms.readPktNonBlocking(rx, pktRx)) {
+                // spin, it's a local socket
+            }
+            received.clear();
+            pktRx.serialize(received, false);
+            pktRx.recycle();
+            if (i == 0) {
+                warm = pool.getAllocationCount();
+            }
+        }
+        double usPerPacket = (System.nanoTime() - start) / 1e3 / packets;
+        System.out.println(String.format("pool: %d packets, %d buffer acquires, %d buffers allocated (%d after the first packet), %.2f us/packet",
+                packets, pool.getAcquireCount(), pool.getAllocationCount(), pool.getAllocationCount() - warm, usPerPacket));
+        tx.close();
+        rx.close();
+        server.close();
+        if (pool.getAllocationCount() != warm) {
+            throw new IllegalStateException("pool: " + (pool.getAllocationCount() - warm) + " buffers allocated after warm up, steady state framing should allocate none");
+        }
+    }
+
+    /**
+     * Record a stream of packets of random sizes and push it through a MOOSPacketFramer in randomly sized chunks,
+     * checking every packet comes out whole and unchanged. Doubles as a fuzz test of the framing.
+     * @param packets number of packets in the stream
+     * @param seed for the random sizes, so a failure can be repeated
+     */
+    public static void framer(int packets, long seed) throws Exception {
+        Random random = new Random(seed);
+        ArrayList<ByteBuffer> expected = new ArrayList<ByteBuffer>();
+        int streamLength = 0;
+        MOOSCommPkt pktTx = new MOOSCommPkt();
+        for (int i = 0; i < packets; i++) {
+            ArrayList<MOOSMsg> msgs = new ArrayList<MOOSMsg>();
+            int count = 1 + random.nextInt(5);
+            for (int j = 0; j < count; j++) {
+                if (random.nextInt(100) == 0) {
+                    msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "IMAGE", new byte[random.nextInt(200000)], 1.0));
+                } else {
+                    msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "NAV_X", random.nextDouble(), 1.0));
+                }
+            }
+            pktTx.serialize(msgs, true);
+            ByteBuffer packet = MOOSMsg.allocate(pktTx.getPacketLengthInBytes());
+            packet.put(pktTx.getBytes()).flip();
+            expected.add(packet);
+            streamLength += packet.remaining();
+        }
+        ByteBuffer stream = MOOSMsg.allocate(streamLength);
+        for (ByteBuffer packet : expected) {
+            stream.put(packet.duplicate());
+        }
+        stream.flip();
+
+        MOOSPacketFramer framer = new MOOSPacketFramer(new MOOSBufferPool());
+        int next = 0;
+        long start = System.nanoTime();
+        while (stream.hasRemaining()) {
+            ByteBuffer chunk = stream.duplicate();
+            chunk.limit(Math.min(stream.limit(), stream.position() + 1 + random.nextInt(128 * 1024)));
+            stream.position(chunk.limit());
+            framer.feed(chunk);
+            ByteBuffer packet;
+            while ((packet = framer.nextPacket()) != null) {
+                if (!packet.equals(expected.get(next))) {
+                    throw new IllegalStateException("framer: packet " + next + " differs (seed " + seed + ")");
+                }
+                next++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (next != packets || framer.getPendingBytes() != 0) {
+            throw new IllegalStateException("framer: got " + next + " of " + packets + " packets (seed " + seed + ")");
+        }
+        System.out.println(String.format("framer: %d packets (%.1f MB) in %d chunks, %.0f packets/s, %.1f MB/s",
+                packets, streamLength / 1e6, framer.getReadCount(), packets / seconds, streamLength / 1e6 / seconds));
+    }
+
+    /**
+     * Encode packets of NODE_REPORT and appcast style strings with serializeGathering() and decode them again
+     * through a MOOSPacketFramer, reporting the throughput both ways against the bytes which would go on the wire.
+     * @param packets number of packets
+     * @param threshold the compression threshold, or MOOSCommPkt.COMPRESSION_DISABLED
+     */
+    public static void compression(int packets, int threshold) throws Exception {
+        Random random = new Random(1);
+        ArrayList<MOOSMsg> msgs = new ArrayList<MOOSMsg>();
+        for (int i = 0; i < 4; i++) {
+            msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "NODE_REPORT", String.format(
+                    "NAME=phone%d,TYPE=UUV,TIME=1252348077.59,X=%.2f,Y=%.2f,LAT=43.825%d,LON=-70.330%d,SPD=2.00,HDG=%.2f,DEPTH=0.00,LENGTH=4,MODE=MODE@ACTIVE:SURVEYING",
+                    i, random.nextDouble() * 100, random.nextDouble() * 100, random.nextInt(1000), random.nextInt(1000), random.nextDouble() * 360), 1.0));
+        }
+        StringBuilder appcast = new StringBuilder("iter=1234,node=phone,proc=pDroidNode,messages=");
+        for (int i = 0; i < 20; i++) {
+            appcast.append("!@#NAV_X=").append(random.nextInt(100)).append(" from uSimMarine");
+        }
+        msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "APPCAST", appcast.toString(), 1.0));
+
+        MOOSBufferPool pool = new MOOSBufferPool();
+        MOOSCommPkt pktTx = new MOOSCommPkt(pool);
+        pktTx.setCompressionThreshold(threshold);
+        int uncompressedLength = MOOSCommPkt.PACKET_HEADER_SIZE;
+        for (MOOSMsg msg : msgs) {
+            uncompressedLength += msg.getSizeInBytesWhenSerialised();
+        }
+        ByteBuffer stream = MOOSMsg.allocate(packets * uncompressedLength);
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            for (ByteBuffer segment : pktTx.serializeGathering(msgs)) {
+                stream.put(segment);
+            }
+        }
+        double encodeSeconds = (System.nanoTime() - start) / 1e9;
+        stream.flip();
+        long wireBytes = stream.remaining();
+
+        MOOSPacketFramer framer = new MOOSPacketFramer(pool);
+        MOOSCommPkt pktRx = new MOOSCommPkt(pool);
+        ArrayList<MOOSMsg> received = new ArrayList<MOOSMsg>();
+        int decoded = 0;
+        start = System.nanoTime();
+        while (stream.hasRemaining()) {
+            ByteBuffer chunk = stream.duplicate();
+            chunk.limit(Math.min(stream.limit(), stream.position() + 64 * 1024));
+            stream.position(chunk.limit());
+            framer.feed(chunk);
+            ByteBuffer packet;
+            while ((packet = framer.nextPacket()) != null) {
+                pktRx.setBytes(packet);
+                pktRx.fill();
+                received.clear();
+                pktRx.serialize(received, false);
+                pktRx.recycle();
+                if (!received.get(received.size() - 1).getStringData().equals(appcast.toString())) {
+                    throw new IllegalStateException("compress: packet " + decoded + " decoded wrongly");
+                }
+                decoded++;
+            }
+        }
+        double decodeSeconds = (System.nanoTime() - start) / 1e9;
+        if (decoded != packets) {
+            throw new IllegalStateException("compress: got " + decoded + " of " + packets + " packets");
+        }
+        double rawMB = (double) packets * uncompressedLength / 1e6;
+        System.out.println(String.format("compress (threshold %d): %d bytes/packet on the wire of %d (%.0f%%), encode %.1f MB/s, decode %.1f MB/s",
+                threshold, wireBytes / packets, uncompressedLength, 100.0 * wireBytes / packets / uncompressedLength, rawMB / encodeSeconds, rawMB / decodeSeconds));
+    }
+
+    /**
+     * Serialise a stream of freshly made notifications, as a publishing app does, comparing the bytes allocated and
+     * the time per message against encoding every string twice with getBytes() as serialisation used to.
+     * Allocation is only measured where the VM can report it (not on Android, use the allocation tracker there).
+     * @param messages number of messages
+     */
+    public static void encoding(int messages) throws Exception {
+        ByteBuffer buffer = MOOSMsg.allocate(4096);
+        String[] keys = {"NAV_X", "NAV_Y", "NAV_HEADING", "NAV_SPEED", "NODE_REPORT_LOCAL"};
+        for (int pass = 0; pass < 2; pass++) { // the first pass warms up the JIT
+            boolean legacy = true;
+            for (int run = 0; run < 2; run++, legacy = !legacy) {
+                long bytesBefore = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < messages; i++) {
+                    MOOSMsg msg = new MOOSMsg(MOOSMsg.MOOS_NOTIFY, keys[i % keys.length], "X=1,Y=2", 1.0);
+                    msg.setSource("pDroidNode");
+                    buffer.clear();
+                    if (legacy) {
+                        // the old way: every string encoded once for the size and again to write it
+                        String[] strings = {msg.getSource(), msg.getSourceAuxInfo(), msg.getCommunity(), msg.getKey(), msg.getStringData()};
+                        for (String s : strings) {
+                            if (s != null) {
+                                buffer.putInt(s.getBytes().length);
+                            }
+                        }
+                        for (String s : strings) {
+                            if (s != null) {
+                                buffer.put(s.getBytes());
+                            }
+                        }
+                    } else {
+                        msg.serialize(buffer, true);
+                    }
+                }
+                double nsPerMessage = (double) (System.nanoTime() - start) / messages;
+                long bytesAfter = allocatedBytes();
+                if (pass == 1) {
+                    System.out.println(String.format("encode (%s): %.0f ns/message, %s bytes allocated/message", legacy ? "getBytes() twice" : "cached",
+                            nsPerMessage, bytesBefore < 0 ? "?" : String.format("%.0f", (double) (bytesAfter - bytesBefore) / messages)));
+                }
+            }
+        }
+        System.out.println("encode: " + MOOSStringTable.size() + " strings in the table");
+    }
+
+    /**
+     * Decode the same packet of typical mail into MOOSMsgs and into MOOSCompactMsgs, keeping every message, and
+     * compare the heap each takes per message. Heap use is read from Runtime after a GC so it is approximate.
+     * @param messages number of messages to keep
+     */
+    public static void footprint(int messages) throws Exception {
+        ArrayList<MOOSMsg> msgs = new ArrayList<MOOSMsg>();
+        msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "NAV_X", 12.5, 1.0));
+        msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "NAV_Y", -3.25, 1.0));
+        msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "NAV_HEADING", 270.0, 1.0));
+        msgs.add(new MOOSMsg(MOOSMsg.MOOS_NOTIFY, "DEPLOY", "true", 1.0));
+        for (MOOSMsg msg : msgs) {
+            msg.setSource("uSimMarine");
+        }
+        MOOSCommPkt pktTx = new MOOSCommPkt();
+        pktTx.serialize(msgs, true);
+        ByteBuffer packet = MOOSMsg.allocate(pktTx.getPacketLengthInBytes());
+        packet.put(pktTx.getBytes()).flip();
+        MOOSCommPkt pktRx = new MOOSCommPkt();
+        pktRx.setBytes(packet);
+        pktRx.fill();
+
+        ArrayList<Object> kept = new ArrayList<Object>(messages);
+        for (int compact = 0; compact < 2; compact++) {
+            kept.clear();
+            long before = usedHeap();
+            MOOSMsgView view = new MOOSMsgView();
+            while (kept.size() < messages) {
+                if (compact == 1) {
+                    view.wrap(packet);
+                    while (view.next() && kept.size() < messages) {
+                        kept.add(MOOSCompactMsg.from(view));
+                    }
+                } else {
+                    ArrayList<MOOSMsg> decoded = new ArrayList<MOOSMsg>();
+                    pktRx.serialize(decoded, false);
+                    for (int i = 0; i < decoded.size() && kept.size() < messages; i++) {
+                        kept.add(decoded.get(i));
+                    }
+                }
+            }
+            long after = usedHeap();
+            System.out.println(String.format("footprint (%s): %.0f bytes/message", compact == 1 ? "MOOSCompactMsg" : "MOOSMsg", (double) (after - before) / messages));
+        }
+    }
+
+    /**
+     * Read the position, speed and heading out of NODE_REPORT strings, comparing MOOSKeyValueParser against
+     * splitting on ',' and '=' and calling Double.parseDouble() on the pieces, as apps tend to do.
+     * @param messages number of strings to read
+     */
+    public static void keyValue(int messages) throws Exception {
+        String[] reports = new String[100];
+        MOOSKeyValueBuilder builder = new MOOSKeyValueBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < reports.length; i++) {
+            reports[i] = builder.clear().add("NAME", "alpha").add("X", Math.round(random.nextDouble() * 10000) / 100.0)
+                    .add("Y", Math.round(random.nextDouble() * 10000) / 100.0).add("SPD", 1.5).add("HDG", (double) random.nextInt(360))
+                    .add("TYPE", "kayak").add("MODE", "MODE@ACTIVE:SURVEYING").add("TIME", 1234567890.25 + i).toString();
+        }
+        String[] fields = {"X", "Y", "SPD", "HDG"};
+        double check = 0;
+        for (int pass = 0; pass < 2; pass++) { // the first pass warms up the JIT
+            boolean split = true;
+            for (int run = 0; run < 2; run++, split = !split) {
+                MOOSKeyValueParser parser = new MOOSKeyValueParser();
+                double sum = 0;
+                long bytesBefore = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < messages; i++) {
+                    String report = reports[i % reports.length];
+                    if (split) {
+                        for (String pair : report.split(",")) {
+                            String[] nameValue = pair.split("=");
+                            for (String field : fields) {
+                                if (nameValue[0].equals(field)) {
+                                    sum += Double.parseDouble(nameValue[1]);
+                                }
+                            }
+                        }
+                    } else {
+                        parser.parse(report);
+                        for (String field : fields) {
+                            sum += parser.getDouble(field);
+                        }
+                    }
+                }
+                double nsPerMessage = (double) (System.nanoTime() - start) / messages;
+                long bytesAfter = allocatedBytes();
+                if (split) {
+                    check = sum;
+                } else if (sum != check) {
+                    System.out.println("keyvalue: FAILED, parser read " + sum + " but split read " + check);
+                }
+                if (pass == 1) {
+                    System.out.println(String.format("keyvalue (%s): %.0f ns/message, %s bytes allocated/message", split ? "split" : "MOOSKeyValueParser",
+                            nsPerMessage, bytesBefore < 0 ? "?" : String.format("%.0f", (double) (bytesAfter - bytesBefore) / messages)));
+                }
+            }
+        }
+    }
+
+    protected static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 if the VM can't say
+     */
+    protected static long allocatedBytes() {
+        try {
+            // by reflection, java.lang.management doesn't exist on Android
+            Object threads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A minimal single threaded stand in for the MOOSDB. It welcomes every client and sends each notification
+     * straight back to the client which posted it, as if the client had registered for its own variables.
+     */
+    public static class LoopbackDB implements Runnable {
+
+        protected ServerSocketChannel server;
+        protected Selector selector;
+        protected Thread theThread;
+        protected volatile boolean enable;
+
+        protected static class Connection extends MOOSCommObject {
+            ByteBuffer protocol = MOOSMsg.allocate(32);
+            MOOSCommPkt pktRx = new MOOSCommPkt();
+            boolean welcomed;
+        }
+
+        public LoopbackDB(int port) throws IOException {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        public int getPort() {
+            return server.socket().getLocalPort();
+        }
+
+        public void run() {
+            while (enable) {
+                try {
+                    selector.select(100);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isAcceptable()) {
+                            SocketChannel sock = server.accept();
+                            if (sock != null) {
+                                sock.configureBlocking(false);
+                                sock.register(selector, SelectionKey.OP_READ, new Connection());
+                            }
+                        } else if (key.isReadable()) {
+                            try {
+                                serve((SocketChannel) key.channel(), (Connection) key.attachment());
+                            } catch (IOException e) {
+                                key.cancel();
+                                key.channel().close();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        protected void serve(SocketChannel sock, Connection conn) throws IOException {
+            if (conn.protocol.hasRemaining()) {
+                if (sock.read(conn.protocol) < 0) {
+                    throw new IOException("closed");
+                }
+                if (conn.protocol.hasRemaining()) {
+                    return;
+                }
+            }
+            while (conn.readPktNonBlocking(sock, conn.pktRx)) {
+                ArrayList<MOOSMsg> in = new ArrayList<MOOSMsg>();
+                conn.pktRx.serialize(in, false);
+                conn.pktRx = new MOOSCommPkt();
+                ArrayList<MOOSMsg> out = new ArrayList<MOOSMsg>();
+                if (!conn.welcomed) {
+                    conn.welcomed = true;
+                    out.add(new MOOSMsg(MOOSMsg.MOOS_WELCOME, "", "Welcome"));
+                }
+                for (MOOSMsg m : in) {
+                    if (m.isType(MOOSMsg.MOOS_NOTIFY)) {
+                        out.add(m);
+                    }
+                }
+                if (!out.isEmpty()) {
+                    MOOSCommPkt pktTx = new MOOSCommPkt();
+                    pktTx.serialize(out, true);
+                    conn.sendPkt(sock, pktTx);
+                }
+            }
+        }
+
+        public void setEnable(boolean enable) {
+            if (!this.enable && enable) {
+                this.enable = enable;
+                theThread = new Thread(this);
+                theThread.start();
+            } else if (this.enable && !enable) {
+                this.enable = enable;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of reusable ByteBuffers for packet data, so that steady state sending and receiving doesn't create garbage
+ * (and GC pauses) for every packet. Buffers are kept in power of two size classes; a request is served from the
+ * smallest class which is big enough, with the limit set to the size asked for. Buffers bigger than the largest
+ * class are allocated and dropped as normal. All buffers are in MOOSMsg.MOOS_BYTE_ORDER.
+ *
+ * So that an idle pool doesn't pin a lot of memory (it matters on Android), only LARGE_BUFFERS_PER_CLASS free
+ * buffers are kept of each size from LARGE_CLASS_SHIFT up, and no more than the max retained bytes in all.
+ */
+public class MOOSBufferPool {
+
+    private static MOOSBufferPool singletonInstance = null;
+    public static final int MIN_CLASS_SHIFT = 6; // 64 bytes
+    public static final int MAX_CLASS_SHIFT = 24; // 16MB, bigger than MOOSCommPkt.DEFAULT_ASSUMMED_MAX_MOOS_MSG_SIZE
+    public static final int DEFAULT_BUFFERS_PER_CLASS = 8;
+    public static final int LARGE_CLASS_SHIFT = 20; // 1MB
+    public static final int LARGE_BUFFERS_PER_CLASS = 2;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 16 * 1024 * 1024;
+    protected boolean direct;
+    protected int buffersPerClass;
+    protected ByteBuffer[][] free;
+    protected int[] freeCount;
+    protected long retainedBytes;
+    protected long maxRetainedBytes = DEFAULT_MAX_RETAINED_BYTES;
+    // statistics
+    protected long acquireCount;
+    protected long allocationCount;
+    protected long releaseCount;
+
+    /**
+     * @param direct whether to allocate direct buffers, which avoid a copy on every socket read and write but are more expensive to create
+     * @param buffersPerClass how many free buffers to keep of each size
+     */
+    public MOOSBufferPool(boolean direct, int buffersPerClass) {
+        this.direct = direct;
+        this.buffersPerClass = buffersPerClass;
+        free = new ByteBuffer[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1][buffersPerClass];
+        freeCount = new int[free.length];
+    }
+
+    public MOOSBufferPool() {
+        this(false, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * Lets us share one heap buffer pool across the whole process.
+     */
+    public synchronized static MOOSBufferPool getInstance() {
+        if (singletonInstance == null) {
+            singletonInstance = new MOOSBufferPool();
+        }
+        return singletonInstance;
+    }
+
+    /**
+     * @param size
+     * @return index of the smallest size class holding size bytes, or -1 if it is too big to pool
+     */
+    protected static int sizeClass(int size) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        if (shift > MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * @param size number of bytes required
+     * @return a cleared buffer with position zero and limit size. Give it back with release() when done.
+     */
+    public ByteBuffer acquire(int size) {
+        int c = sizeClass(size);
+        ByteBuffer buf = null;
+        synchronized (this) {
+            acquireCount++;
+            if (c >= 0 && freeCount[c] > 0) {
+                buf = free[c][--freeCount[c]];
+                free[c][freeCount[c]] = null;
+                retainedBytes -= buf.capacity();
+            } else {
+                allocationCount++;
+            }
+        }
+        if (buf == null) {
+            int capacity = c >= 0 ? 1 << (c + MIN_CLASS_SHIFT) : size;
+            buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            buf.order(MOOSMsg.MOOS_BYTE_ORDER);
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Return a buffer obtained from acquire(). The caller must not use it afterwards.
+     * @param buf
+     * @throws IllegalStateException if buf is already free, since handing it out twice would let two packets share it
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.isDirect() != direct) {
+            return;
+        }
+        int c = sizeClass(buf.capacity());
+        if (c < 0 || buf.capacity() != 1 << (c + MIN_CLASS_SHIFT)) {
+            return; // not one of ours, let the GC have it
+        }
+        synchronized (this) {
+            for (int i = 0; i < freeCount[c]; i++) {
+                if (free[c][i] == buf) {
+                    throw new IllegalStateException("MOOSBufferPool: buffer released twice");
+                }
+            }
+            releaseCount++;
+            int keep = c + MIN_CLASS_SHIFT >= LARGE_CLASS_SHIFT ? Math.min(buffersPerClass, LARGE_BUFFERS_PER_CLASS) : buffersPerClass;
+            if (freeCount[c] < keep && retainedBytes + buf.capacity() <= maxRetainedBytes) {
+                free[c][freeCount[c]++] = buf;
+                retainedBytes += buf.capacity();
+            }
+        }
+    }
+
+    /**
+     * @return the total size of the free buffers the pool is keeping
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    /**
+     * @param maxRetainedBytes the most bytes of free buffers to keep, beyond which released buffers are left to the GC
+     */
+    public synchronized void setMaxRetainedBytes(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * @return the number of buffers this pool has had to create. This stops growing once the pool has warmed up.
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return the number of calls to acquire()
+     */
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    /**
+     * @return the number of calls to release()
+     */
+    public synchronized long getReleaseCount() {
+        return releaseCount;
+    }
+
+    /**
+     * @return whether this pool hands out direct buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+}
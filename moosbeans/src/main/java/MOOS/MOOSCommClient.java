@@ -35,14 +35,29 @@ package MOOS;
 
 import java.util.TreeMap;
 import java.util.Collection;
-import java.util.Stack;
+import java.util.List;
+import java.util.Set;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.HashMap;
 import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static MOOS.MOOSMsg.*;
 
@@ -51,17 +66,34 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
     private static MOOSCommClient singletonInstance = null;
   
     public static final int MOOS_SERVER_REQUEST_ID = -2;
+    /** Sleep for 1/fundamentalFrequency between calls to iterate(). This is the original (C++ like) behaviour. */
+    public static final int POLLING_IO_MODE = 0;
+    /** Wake on socket readiness or new outgoing mail using a java.nio Selector, see MOOSSelectorLoop. */
+    public static final int SELECTOR_IO_MODE = 1;
+    /** A reader thread which delivers mail as soon as it arrives, and a writer thread which sends as soon as mail is posted (or after the batching window). */
+    public static final int ASYNC_IO_MODE = 2;
     protected SocketChannel socket;
     protected int port;
     protected String hostname;
     protected String name;
-    protected Stack<MOOSMsg> outboxList;
-    protected ArrayList<MOOSMsg> inboxList;
-    protected ArrayList<String> publishingList;
+    protected MOOSOutbox outbox;
+    protected MOOSInbox<MOOSMsg> inbox;
+    protected volatile MOOSInbox<MOOSCompactMsg> compactInbox; // used instead of inbox once connected if set
+    protected final AtomicLong arrivals = new AtomicLong(); // shared by both inboxes, so their mail can be merged oldest first
+    protected final Object rxLock = new Object(); // held while a packet goes into the inboxes, and while they are swapped
+    protected boolean awaitingWelcome;
+    protected Set<String> publishingList;
     protected TreeMap<String, Double> subscribingList;
+    protected ConcurrentHashMap<MOOSWildcard, Double> wildcardList;
+    protected boolean wildcardRegistrationSupported = true;
+    protected volatile MOOSLatestValues latestValues; // kept up to date once somebody asks for it
+    // requests waiting for replies, by the message ID the reply will carry, in the order they were sent
+    protected ConcurrentHashMap<Integer, ConcurrentLinkedQueue<MOOSRequestFuture>> waiters = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<MOOSRequestFuture>>();
+    protected HashMap<Integer, ArrayList<MOOSMsg>> rxReplies = new HashMap<Integer, ArrayList<MOOSMsg>>(); // replies found in the packet being read
     protected Thread theThread;
-    protected boolean enable; // whether this thread is running or not.
+    protected volatile boolean enable; // whether this thread is running or not.
     protected int MAX_INBOX_MESSAGES = 1000;
+    protected long MAX_INBOX_BYTES = MOOSInbox.DEFAULT_MAX_BYTES;
     protected int MAX_OUTBOX_MESSAGES = 500;
     protected double fundamentalFrequency = 5; // 200ms
     protected long keepAliveTime = 1000; // 1000ms
@@ -69,7 +101,31 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
     protected double startTime;
     protected boolean doLocalTimeCorrection = false;
     protected boolean useNameAsSrc = true;
-    protected int nextMsgID = 0; // start IDs at zero.
+    protected AtomicInteger nextMsgID = new AtomicInteger(); // start IDs at zero.
+    protected int ioMode = POLLING_IO_MODE;
+    // state used when driven by a MOOSSelectorLoop
+    protected MOOSSelectorLoop selectorLoop;
+    protected MOOSReactor reactor; // shared reactor which connects and serves us instead of theThread, if set
+    protected long reconnectTime;
+    protected SelectionKey selectionKey;
+    protected long nextTickTime;
+    protected volatile boolean flushRequested;
+    protected MOOSPacketFramer framer; // splits what we read into packets, holding on to a partial one until the rest arrives
+    protected ByteBuffer[] pendingTx; // packet still being written when the socket filled up
+    // state used in ASYNC_IO_MODE
+    protected Thread writerThread;
+    protected Selector readSelector;
+    protected final Object writeSignal = new Object();
+    protected long batchingWindow = 0; // microseconds to wait for more mail before sending
+    protected MOOSCommPkt pktTx; // reused for every packet we send
+    protected int compressionThreshold = MOOSCommPkt.COMPRESSION_DISABLED;
+    protected volatile MOOSMsgView.Handler viewHandler;
+    protected volatile MOOSPublisher[] publishers = new MOOSPublisher[0]; // copy on write
+    protected volatile boolean publishersDirty;
+    protected MOOSMsgView rxView;
+    protected MOOSCommPkt pktRx; // reused for every packet we receive
+    protected ArrayList<MOOSMsg> rxList = new ArrayList<MOOSMsg>();
+    protected ArrayList<MOOSMsg> txList = new ArrayList<MOOSMsg>(); // outbox is drained into here by the I/O thread
 
     public static void main(String[] args) {
         try {
@@ -154,12 +210,13 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
 
 
         // Initialise message boxes
-        outboxList = new Stack<MOOSMsg>();
-        inboxList = new ArrayList<MOOSMsg>();
+        outbox = new MOOSOutbox(MAX_OUTBOX_MESSAGES);
+        inbox = new MOOSInbox<MOOSMsg>(MAX_INBOX_MESSAGES, MAX_INBOX_BYTES, arrivals);
 
         // current not editing the publishingList.
-        publishingList = new ArrayList<String>();
+        publishingList = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         subscribingList = new TreeMap<String, Double>();
+        wildcardList = new ConcurrentHashMap<MOOSWildcard, Double>();
 
         name = "JavaMOOSConnector";
 
@@ -212,40 +269,40 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * - Create a socket connecting to the server.
      * - handshake. Exchange protocol details and wait for a welcome message.
      * - Run round a loop pausing for the fundamental frequency
-     * - call iterate() on every iteration. This sends messages in outbox and receives all new MOOSPackets containing messages, and orders then in the inbox in newest 1st.
+     * - call iterate() on every iteration. This sends messages in outbox and receives all new MOOSPackets containing messages, and appends them to the inbox in the order they arrived.
      */
     @Override
     public void run() {
         while (enable) {
             try {
-                if (manualConnect || connectToServer()) { // should only call connectToServer() if manualConnect is false. (i.e. user didn't call tryToConnect())
-                    // this.enable = false;
-                    //  return;
-                    if (manualConnect || handshake()) {
-                        sendRegistrationPackets();
-                        while (enable && socket.isConnected()) {
-                            try {
-                                Thread.sleep((int) Math.floor((1000.0 / fundamentalFrequency)));
-                                if (enable && socket.isConnected()) {
-                                    iterate();
-
-                                } else {
-                                    if (enable)  moosTrace("MOOSDB disconnected us :-( \n");
-                                    moosTrace("Requesting Disconnect from the MOOSDB... \n");
-                                    break;
-                                }
-
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
+                if (establishConnection()) {
+                    if (ioMode == SELECTOR_IO_MODE) {
+                        runSelectorLoop();
+                        if (enable) {
+                            moosTrace("MOOSDB disconnected us :-( \n");
+                        }
+                    } else if (ioMode == ASYNC_IO_MODE) {
+                        runAsync();
+                        if (enable) {
+                            moosTrace("MOOSDB disconnected us :-( \n");
                         }
+                    }
+                    while (enable && ioMode == POLLING_IO_MODE && socket.isConnected()) {
+                        try {
+                            Thread.sleep((int) Math.floor((1000.0 / fundamentalFrequency)));
+                            if (enable && socket.isConnected()) {
+                                iterate();
+
+                            } else {
+                                if (enable)  moosTrace("MOOSDB disconnected us :-( \n");
+                                moosTrace("Requesting Disconnect from the MOOSDB... \n");
+                                break;
+                            }
 
-                        //  disconnectFromServer();
-                        //  return;
-                    }// else {
-                    // disconnectFromServer();
-                    // return;
-                    //  }
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
                 }
 
             } catch (Exception e) {
@@ -269,51 +326,567 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
 
     }
 
-    public synchronized ArrayList<MOOSMsg> getNewMsgs() {
-        ArrayList<MOOSMsg> in = (ArrayList<MOOSMsg>)inboxList.clone();
-        inboxList.clear();
+    /**
+     * Connect and handshake unless the user already did so with tryToConnect(), then (re)send our registrations.
+     * @return whether we are connected and welcomed by the MOOSDB
+     * @throws IOException
+     */
+    protected boolean establishConnection() throws IOException {
+        if (manualConnect || connectToServer()) { // should only call connectToServer() if manualConnect is false. (i.e. user didn't call tryToConnect())
+            if (manualConnect || handshake()) {
+                sendRegistrationPackets();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serve this connection from a private MOOSSelectorLoop on the current thread until we are disabled or disconnected.
+     * @throws IOException
+     */
+    protected void runSelectorLoop() throws IOException {
+        MOOSSelectorLoop loop = new MOOSSelectorLoop();
+        try {
+            loop.attach(this);
+            while (loop.iterate() > 0) {
+                // the loop calls iterate() whenever there is something to do
+            }
+        } finally {
+            loop.close();
+            selectorLoop = null;
+        }
+    }
+
+    /**
+     * Read on this thread and write on a second one until we are disabled or disconnected. The reader calls iterate() as soon as mail arrives (or once a tick if none does), the writer sends as soon as post() tells it there is mail.
+     * @throws IOException
+     */
+    protected void runAsync() throws IOException {
+        readSelector = Selector.open();
+        SelectionKey readKey = socket.register(readSelector, SelectionKey.OP_READ);
+        writerThread = new Thread(new Runnable() {
+
+            public void run() {
+                writeLoop();
+            }
+        });
+        writerThread.start();
+        try {
+            while (enable && socket.isConnected()) {
+                readSelector.select(getTickPeriod());
+                readSelector.selectedKeys().clear();
+                if (enable && socket.isConnected()) {
+                    iterate();
+                }
+            }
+        } finally {
+            readKey.cancel();
+            readSelector.close();
+            readSelector = null;
+            signalWriter();
+            try {
+                writerThread.join(1000);
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+            writerThread = null;
+        }
+    }
+
+    /**
+     * The writer thread in ASYNC_IO_MODE. Waits for post() to signal, optionally waits the batching window for more mail, then sends the whole outbox.
+     */
+    protected void writeLoop() {
+        Selector writeSelector = null;
+        SelectionKey writeKey = null;
+        try {
+            writeSelector = Selector.open();
+            writeKey = socket.register(writeSelector, 0);
+            while (enable && socket.isConnected()) {
+                synchronized (writeSignal) {
+                    while (!flushRequested && enable && socket.isConnected()) {
+                        writeSignal.wait(getTickPeriod());
+                    }
+                    flushRequested = false;
+                }
+                if (batchingWindow > 0) {
+                    LockSupport.parkNanos(batchingWindow * 1000);
+                }
+                ByteBuffer[] segments = null;
+                boolean publish = takePublishersDirty();
+                if (outbox.drainTo(txList) > 0 || publish) { // no lock needed, we are the only consumer
+                    segments = getTxPacket().serializeGathering(txList, publish ? publishers : null);
+                    txList.clear();
+                    lastSentMsgTime = System.currentTimeMillis();
+                }
+                if (segments != null) {
+                    // write outside the lock so that post() never waits for the network
+                    socket.write(segments);
+                    while (hasRemaining(segments) && enable) {
+                        writeKey.interestOps(SelectionKey.OP_WRITE);
+                        writeSelector.select(getTickPeriod());
+                        writeSelector.selectedKeys().clear();
+                        socket.write(segments);
+                    }
+                    writeKey.interestOps(0);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("CAUGHT EXCEPTION: ");
+            e.printStackTrace();
+            closeConnection();
+        } finally {
+            if (writeKey != null) {
+                writeKey.cancel();
+            }
+            if (writeSelector != null) {
+                try {
+                    writeSelector.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            if (readSelector != null) {
+                readSelector.wakeup(); // make sure the reader notices if we gave up
+            }
+        }
+    }
+
+    protected void signalWriter() {
+        synchronized (writeSignal) {
+            flushRequested = true;
+            writeSignal.notifyAll();
+        }
+    }
+
+    /**
+     * @return all mail received since the last call, oldest first
+     */
+    public ArrayList<MOOSMsg> getNewMsgs() {
+        ArrayList<MOOSMsg> in = new ArrayList<MOOSMsg>(inbox.size());
+        drainNewMsgs(in);
         return in;
     }
+
+    /**
+     * Hand all mail received since the last call over to mail, oldest first. Unlike getNewMsgs() the caller can reuse its collection.
+     * With a compact inbox the mail is converted to MOOSMsgs on the way.
+     * @param mail
+     * @return the number of messages handed over
+     */
+    public int drainNewMsgs(Collection<? super MOOSMsg> mail) {
+        MOOSInbox<MOOSCompactMsg> compact = compactInbox;
+        if (compact == null || compact.isEmpty()) {
+            return inbox.drainTo(mail);
+        }
+        // merge the two by arrival, what is there now and no more so a busy receiver can't keep us here
+        int count = inbox.size() + compact.size();
+        for (int i = 0; i < count; i++) {
+            if (inbox.getOldestArrival() < compact.getOldestArrival()) {
+                MOOSMsg m = inbox.poll();
+                if (m == null) {
+                    return i; // somebody else drained them
+                }
+                mail.add(m);
+            } else {
+                MOOSCompactMsg m = compact.poll();
+                if (m == null) {
+                    return i;
+                }
+                mail.add(m.toMOOSMsg());
+                m.release(); // the MOOSMsg has its own hold
+            }
+        }
+        return count;
+    }
+
+    /**
+     * As drainNewMsgs() but handing over MOOSCompactMsgs. Without a compact inbox the mail is converted on the way.
+     * @param mail
+     * @return the number of messages handed over
+     */
+    public int drainNewCompactMsgs(Collection<? super MOOSCompactMsg> mail) {
+        MOOSInbox<MOOSCompactMsg> compact = compactInbox;
+        if (inbox.isEmpty()) {
+            return compact == null ? 0 : compact.drainTo(mail);
+        }
+        // the inbox has mail from before the compact inbox was turned on, the handshake, or unclaimed replies,
+        // merged with the compact mail by arrival
+        int count = inbox.size() + (compact == null ? 0 : compact.size());
+        for (int i = 0; i < count; i++) {
+            if (compact == null || inbox.getOldestArrival() < compact.getOldestArrival()) {
+                MOOSMsg m = inbox.poll();
+                if (m == null) {
+                    return i; // somebody else drained them
+                }
+                mail.add(MOOSCompactMsg.from(m));
+            } else {
+                MOOSCompactMsg m = compact.poll();
+                if (m == null) {
+                    return i;
+                }
+                mail.add(m);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Search some mail for the newest message for a variable. To know the current value of a variable whatever
+     * mail has been taken, getLatestValues() is quicker.
+     * @param msgList mail, oldest first
+     * @param varName
+     * @return the last message for varName, or null
+     */
     public static MOOSMsg findNewestMsg(Iterable<MOOSMsg> msgList, String varName) {
-        for (MOOSMsg m: msgList) {
-            if (m.getKey().equals(varName)) return m;
+        MOOSMsg newest = null;
+        for (MOOSMsg m: msgList) { // mail is oldest first so keep the last match
+            if (m.getKey().equals(varName)) newest = m;
         }
-        return null;
+        return newest;
     }
 
 
     public synchronized void readNewMessages() throws IOException {
         moosTrace("Reading new messages from socket...\n");
-        MOOSCommPkt pktRx = new MOOSCommPkt();
-        if (inboxList.size() > this.MAX_INBOX_MESSAGES)  {
-            //System.out.println("INBOX OVERFLOWING: CLEARING!");
-            inboxList.clear();
-        } // always empty the mail box.
-        while (readPkt(socket, pktRx)) { // only add messages if managed to read a packet. Also the latest packet will be the newest so that gets added to the top of the list.
-            ArrayList<MOOSMsg> tempList = new ArrayList<MOOSMsg>();
-            pktRx.serialize(tempList, false); // read messages into temp list
-            inboxList.addAll(0, tempList); // add temp list to front of message queue as last packet received will contain the newest messages
-            //debug
-            if (verbose) {
-                for (MOOSMsg m : tempList) {
-                    System.out.print("I:");
-                    m.trace();
+        if (framer == null) {
+            framer = new MOOSPacketFramer(bufferPool);
+        }
+        if (pktRx == null) {
+            pktRx = new MOOSCommPkt(bufferPool);
+        }
+        // read all the socket has, decoding every whole packet as we go. A partial packet is kept by the framer for next time.
+        int count;
+        do {
+            count = framer.readFrom(socket);
+            ByteBuffer packet;
+            while ((packet = framer.nextPacket()) != null) { // packets come out in the order they were sent so the inbox stays oldest first
+                pktRx.setBytes(packet, framer.getSharedBuffer()); // binary payloads stay in the receive buffer
+                try {
+                    pktRx.fill();
+                } catch (NoJavaZipCompressionSupportYetException e) {
+                    e.printStackTrace();
+                    continue;
                 }
+                addToInbox(pktRx);
             }
-            pktRx = new MOOSCommPkt();
+        } while (count > 0);
+        if (count < 0) {
+            throw new IOException("Connection closed by the MOOSDB");
         }
     }
 
     /**
-     * This will also clear the message list once sent
+     * Decode a whole packet into the inbox and recycle it ready for the next one.
+     * @param pkt
+     */
+    protected void addToInbox(MOOSCommPkt pkt) {
+        synchronized (rxLock) {
+            MOOSLatestValues latest = latestValues;
+            if (latest == null) {
+                addToInbox(pkt, null);
+            } else {
+                latest.beginUpdate(); // the whole packet is one update to the latest values
+                try {
+                    addToInbox(pkt, latest);
+                } finally {
+                    latest.endUpdate();
+                }
+            }
+            if (!rxReplies.isEmpty()) {
+                completeRequests();
+            }
+        }
+    }
+
+    protected void addToInbox(MOOSCommPkt pkt, MOOSLatestValues latest) {
+        rxList.clear();
+        MOOSMsgView.Handler handler = viewHandler;
+        MOOSInbox<MOOSCompactMsg> compact = awaitingWelcome ? null : compactInbox;
+        if (compact != null) {
+            // decode straight from the packet into compact messages, no MOOSMsgs involved
+            if (rxView == null) {
+                rxView = new MOOSMsgView();
+            }
+            rxView.wrap(pkt.getBytes(), pkt.owner);
+            int dropped = 0;
+            while (rxView.next()) {
+                if (!waiters.isEmpty() && takeReply(rxView.getMsgID(), rxView.getMsgType(), null)) {
+                    continue;
+                }
+                if (latest != null) {
+                    latest.update(rxView);
+                }
+                if (handler == null || !handler.onMsgView(rxView)) {
+                    dropped += compact.add(MOOSCompactMsg.from(rxView), rxView.getLength());
+                }
+            }
+            pkt.recycle();
+            if (dropped > 0) {
+                moosTrace("Inbox full, dropped %d oldest messages\n", dropped);
+            }
+            return;
+        } else if (handler != null) {
+            // let the handler read each message in place, only decoding those it doesn't want into MOOSMsgs
+            if (rxView == null) {
+                rxView = new MOOSMsgView();
+            }
+            rxView.wrap(pkt.getBytes(), pkt.owner);
+            while (rxView.next()) {
+                if (!waiters.isEmpty() && takeReply(rxView.getMsgID(), rxView.getMsgType(), null)) {
+                    continue;
+                }
+                if (latest != null) {
+                    latest.update(rxView);
+                }
+                if (!handler.onMsgView(rxView)) {
+                    rxList.add(rxView.toMOOSMsg());
+                }
+            }
+        } else {
+            pkt.serialize(rxList, false); // read messages into temp list
+            if (!waiters.isEmpty()) {
+                for (Iterator<MOOSMsg> i = rxList.iterator(); i.hasNext();) {
+                    MOOSMsg m = i.next();
+                    if (takeReply(m.getMsgID(), m.msgType, m)) {
+                        i.remove();
+                    }
+                }
+            }
+            if (latest != null) {
+                for (MOOSMsg m : rxList) {
+                    latest.update(m);
+                }
+            }
+        }
+        pkt.recycle();
+        int dropped = 0;
+        for (MOOSMsg m : rxList) {
+            dropped += inbox.add(m, m.getLength());
+        }
+        if (dropped > 0) {
+            moosTrace("Inbox full, dropped %d oldest messages\n", dropped);
+        }
+        //debug
+        if (verbose) {
+            for (MOOSMsg m : rxList) {
+                System.out.print("I:");
+                m.trace();
+            }
+        }
+        rxList.clear();
+    }
+
+    /**
+     * Keep a message aside for the request waiting on its ID, if there is one, rather than putting it in the inbox.
+     * Only the MOOSDB's replies (MOOS_DATA) count: notifications carry whatever ID their sender chose, so one
+     * which happens to share a request's ID is still mail.
+     * @param msgID
+     * @param msgType
+     * @param msg the message, or null to take it from rxView
+     * @return whether it was a reply
+     */
+    protected boolean takeReply(int msgID, char msgType, MOOSMsg msg) {
+        if (msgType != MOOS_DATA) {
+            return false;
+        }
+        Integer id = msgID;
+        Queue<MOOSRequestFuture> queue = waiters.get(id);
+        if (queue == null || queue.isEmpty()) {
+            return false;
+        }
+        ArrayList<MOOSMsg> reply = rxReplies.get(id);
+        if (reply == null) {
+            reply = new ArrayList<MOOSMsg>();
+            rxReplies.put(id, reply);
+        }
+        reply.add(msg != null ? msg : rxView.toMOOSMsg());
+        return true;
+    }
+
+    /**
+     * Hand the replies found in a packet to the oldest request waiting for each. A request which has already timed
+     * out doesn't get one, the next does, and if there is none left the reply goes in the inbox after all.
+     */
+    protected void completeRequests() {
+        for (Map.Entry<Integer, ArrayList<MOOSMsg>> e : rxReplies.entrySet()) {
+            Queue<MOOSRequestFuture> queue = waiters.get(e.getKey());
+            MOOSRequestFuture request;
+            boolean taken = false;
+            while (queue != null && !taken && (request = queue.poll()) != null) {
+                taken = request.complete(e.getValue());
+            }
+            if (!taken) {
+                for (MOOSMsg m : e.getValue()) {
+                    inbox.add(m, m.getLength());
+                }
+            }
+        }
+        rxReplies.clear();
+    }
+
+    /**
+     * Wait for the MOOSDB's reply to a message. Call this before posting the message, so the reply can't be missed.
+     * @param msgID the ID the reply will carry
+     * @param timeoutMillis how long to wait before failing with a TimeoutException, 0 for ever
+     * @return the future reply
+     */
+    protected MOOSRequestFuture awaitReply(int msgID, long timeoutMillis) {
+        MOOSRequestFuture request = new MOOSRequestFuture(msgID);
+        ConcurrentLinkedQueue<MOOSRequestFuture> queue = waiters.get(msgID);
+        if (queue == null) {
+            ConcurrentLinkedQueue<MOOSRequestFuture> made = new ConcurrentLinkedQueue<MOOSRequestFuture>();
+            queue = waiters.putIfAbsent(msgID, made);
+            if (queue == null) {
+                queue = made;
+            }
+        }
+        request.setWaiters(queue);
+        queue.add(request);
+        request.setTimeout(timeoutMillis);
+        return request;
+    }
+
+    /**
+     * Ask the MOOSDB something, e.g. "ALL" for a summary of every variable, without waiting for the answer.
+     * Port of the C++ ServerRequest(), which sleeps until the reply turns up.
+     * @param what
+     * @param timeoutMillis how long to wait for the reply before failing with a TimeoutException
+     * @return the future reply, failed straight away with an IOException if we aren't connected
+     */
+    public MOOSRequestFuture serverRequest(String what, long timeoutMillis) {
+        MOOSRequestFuture request = awaitReply(MOOS_SERVER_REQUEST_ID, timeoutMillis);
+        if (!post(new MOOSMsg(MOOS_SERVER_REQUEST, what, ""))) {
+            request.fail(new IOException("Not connected to the MOOSDB"));
+        }
+        return request;
+    }
+
+    /**
+     * The C++ ServerRequest(): ask the MOOSDB something and wait for the answer.
+     * @param what
+     * @param mail where to put the reply
+     * @param dfTimeOut how long to wait, in seconds
+     * @return false if there was no reply in time
+     */
+    public boolean serverRequest(String what, Collection<MOOSMsg> mail, double dfTimeOut) {
+        try {
+            mail.addAll(serverRequest(what, (long) (dfTimeOut * 1000)).get());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            moosTrace("ServerRequest " + what + " failed: " + e.getCause() + "\n");
+            return false;
+        }
+    }
+
+    /**
+     * The C++ Peek(): take the messages with a given ID out of the inbox.
+     * @param mail where to put them, oldest first
+     * @param nIDRequired
+     * @param bClear empty the rest of the inbox too
+     * @return whether any were found
+     */
+    public boolean peek(Collection<MOOSMsg> mail, int nIDRequired, boolean bClear) {
+        ArrayList<MOOSMsg> all = new ArrayList<MOOSMsg>();
+        inbox.peekAll(all);
+        int found = 0;
+        for (MOOSMsg m : all) {
+            if (!m.isType(MOOS_NULL_MSG) && m.getMsgID() == nIDRequired && inbox.remove(m)) {
+                mail.add(m);
+                found++;
+            }
+        }
+        if (bClear) {
+            inbox.clear();
+        }
+        return found > 0;
+    }
+
+    /**
+     * Fail every request still waiting, e.g. because the connection has gone.
+     * @param cause
+     */
+    protected void failRequests(Throwable cause) {
+        for (Queue<MOOSRequestFuture> queue : waiters.values()) {
+            MOOSRequestFuture request;
+            while ((request = queue.poll()) != null) {
+                request.fail(cause);
+            }
+        }
+    }
+
+    /**
+     * This will also clear the message list once sent. In ASYNC_IO_MODE the writer thread owns the packet, so the
+     * messages go through the outbox for it to send, after anything already posted.
      * @param messages
      */
     public synchronized void sendMessages(Collection<MOOSMsg> messages) {
+        if (ioMode == ASYNC_IO_MODE && writerThread != null) {
+            for (MOOSMsg msg : messages) {
+                outbox.offer(msg);
+            }
+            signalWriter();
+            return;
+        }
+        sendMessages(messages, null);
+    }
+
+    /**
+     * @param messages
+     * @param publishers handles to send the value of if they are dirty, or null
+     */
+    protected synchronized void sendMessages(Collection<MOOSMsg> messages, MOOSPublisher[] publishers) {
         // Send the whole list
-        if (!messages.isEmpty()) {
-            MOOSCommPkt PktTx = new MOOSCommPkt();
-            PktTx.serialize(new ArrayList(messages), true); // convert from Stack to ArrayList.
-            sendPkt(socket, PktTx);
+        if (!messages.isEmpty() || publishers != null) {
+            ByteBuffer[] segments = getTxPacket().serializeGathering(messages instanceof List ? (List<MOOSMsg>) messages : new ArrayList<MOOSMsg>(messages), publishers);
+            if (segments == null) {
+                return; // the publishers had already been sent
+            }
+            if (ioMode == POLLING_IO_MODE) {
+                sendPkt(socket, segments);
+            } else {
+                pendingTx = segments;
+                writePending();
+            }
+        }
+    }
+
+    protected MOOSCommPkt getTxPacket() {
+        if (pktTx == null) {
+            pktTx = new MOOSCommPkt(bufferPool);
+            pktTx.setCompressionThreshold(compressionThreshold);
+        }
+        return pktTx;
+    }
+
+    /**
+     * Write as much of the pending packet as the socket will take without blocking. If it doesn't all fit we ask the selector to tell us when the socket is writable again.
+     */
+    protected synchronized void writePending() {
+        if (pendingTx == null) {
+            return;
+        }
+        try {
+            socket.write(pendingTx);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            closeConnection();
+            pendingTx = null;
+            return;
+        }
+        if (hasRemaining(pendingTx)) {
+            if (selectionKey != null && selectionKey.isValid()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } else {
+            pendingTx = null;
+            if (selectionKey != null && selectionKey.isValid()) {
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
         }
     }
 
@@ -324,7 +897,7 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
 
         long timeNow = System.currentTimeMillis();
 
-        if (outboxList.isEmpty()) { // if empty we just send an NULL message to keep things ticking over. Sending at fundamental frequency seems a bit high
+        if (outbox.isEmpty() && !publishersDirty) { // if empty we just send an NULL message to keep things ticking over. Sending at fundamental frequency seems a bit high
             if (timeNow - this.lastSentMsgTime > this.keepAliveTime) { // only if has been a while since last message
                 this.lastSentMsgTime = timeNow;
                 MOOSMsg msg = new MOOSMsg();
@@ -335,8 +908,7 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
             this.lastSentMsgTime = timeNow;
         }
 
-        sendMessages(outboxList); // send the outbox
-        outboxList.clear(); // clear the outbox
+        flushOutbox();
 
         //  try {
         readNewMessages();
@@ -347,6 +919,22 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         }*/
     }
 
+    /**
+     * Send the outbox and clear it. If the last packet is still being written (selector mode) the mail is left in the outbox until it has gone.
+     */
+    protected synchronized void flushOutbox() {
+        if (ioMode == ASYNC_IO_MODE && writerThread != null) {
+            signalWriter(); // the writer thread does the sending
+            return;
+        }
+        if (pendingTx != null) {
+            return;
+        }
+        outbox.drainTo(txList); // empty the outbox
+        sendMessages(txList, takePublishersDirty() ? publishers : null); // send it
+        txList.clear();
+    }
+
     public boolean connectToServer() throws IOException {
         if (socket != null && socket.isConnected()) {
             moosTrace("Client is already connected! ... disconnecting first\n");
@@ -360,6 +948,10 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         try {
             moosTrace("Trying " + this.hostname + ":" + this.port + "...\n");
             socket = SocketChannel.open();
+            if (framer != null) {
+                framer.reset(); // nothing carried over from a previous connection
+            }
+            pendingTx = null;
             socket.socket().setReuseAddress(enable); // allows immediate reuse
             socket.socket().setSendBufferSize(4000000);
              socket.socket().setReceiveBufferSize(4000000);
@@ -405,10 +997,22 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         }
     }
 
+    public boolean isConnected() {
+        return socket != null && socket.isConnected();
+    }
+
     public synchronized boolean disconnectFromServer() {
         enable = false;
-        this.inboxList.clear();
-        this.outboxList.clear();
+        this.inbox.clear();
+        if (this.compactInbox != null) {
+            this.compactInbox.clear();
+        }
+        this.outbox.clear();
+        if (this.framer != null) {
+            this.framer.reset();
+        }
+        this.pendingTx = null;
+        failRequests(new IOException("Disconnected from the MOOSDB"));
         return closeConnection();
     }
 
@@ -426,50 +1030,63 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
             // Send a blank message
             MOOSMsg msg = new MOOSMsg(MOOS_DATA, "", name);
             sendMsg(socket, msg);
-            for (int i = 0; i < 50; i++) { // try to read 10 times of 3 seconds. Should be enough time to see if we receive a welcome
+            // wait for the welcome on a selector rather than sleeping, so we get going as soon as it arrives
+            Selector welcomeSelector = Selector.open();
+            SelectionKey welcomeKey = socket.register(welcomeSelector, SelectionKey.OP_READ);
+            awaitingWelcome = true; // the welcome must land in the MOOSMsg inbox for awaitWelcome() to find
+            try {
+                return awaitWelcome(welcomeSelector);
+            } finally {
+                awaitingWelcome = false;
+                welcomeKey.cancel();
+                welcomeSelector.close(); // deregisters the socket so it can be used with another selector
+            }
 
-                try {
-                    Thread.sleep(300);
-                } catch (InterruptedException ex) {
-                    //  Logger.getLogger(MOOSCommClient.class.getName()).log(Level.SEVERE, null, ex);
-                }
+        } catch (IOException ex) {
+          //  ex.printStackTrace();
+            throw (ex);
+          //  return false;
+        }
+    }
+
+    protected boolean awaitWelcome(Selector welcomeSelector) throws IOException {
+        for (int i = 0; i < 50; i++) { // try to read 50 times for up to 300ms. Should be enough time to see if we receive a welcome
 
-                this.readNewMessages();
-                for (MOOSMsg welcomeMsg : inboxList) {
-                    if (welcomeMsg != null) {
-                        if (welcomeMsg.isType(MOOSMsg.MOOS_WELCOME)) {
-                            moosTrace(" Success! " + welcomeMsg.getStringData() + "\n");
+            welcomeSelector.select(300);
+            welcomeSelector.selectedKeys().clear();
+
+            this.readNewMessages();
+            ArrayList<MOOSMsg> mail = new ArrayList<MOOSMsg>();
+            inbox.peekAll(mail);
+            for (MOOSMsg welcomeMsg : mail) {
+                if (welcomeMsg != null) {
+                    if (welcomeMsg.isType(MOOSMsg.MOOS_WELCOME)) {
+                        moosTrace(" Success! " + welcomeMsg.getStringData() + "\n");
+                        if (verbose) {
+                            System.out.print("I:");
+                            welcomeMsg.trace();
+                        }
+                        double skew = welcomeMsg.getDoubleData();
+                        if (this.doLocalTimeCorrection) {
+                            // SetMOOSSkew(skew);
                             if (verbose) {
-                                System.out.print("I:");
-                                welcomeMsg.trace();
-                            }
-                            double skew = welcomeMsg.getDoubleData();
-                            if (this.doLocalTimeCorrection) {
-                                // SetMOOSSkew(skew);
-                                if (verbose) {
-                                    moosTrace("MOOSCommClient: Not implemented skew yet \n");
-                                }
+                                moosTrace("MOOSCommClient: Not implemented skew yet \n");
                             }
-                            inboxList.remove(welcomeMsg);
-                            return true;
-                        } else if (welcomeMsg.isType(MOOSMsg.MOOS_POISON)) {
-                            // filthy MOOS
-                            moosTrace("MOOSDB Poisoned us, handshake() fail, why oh why?! : " + welcomeMsg.getStringData() + "\n");
-                            return false;
-                        } else {
-                            moosTrace("MOOSDB Handshake - Not welcome message?! : " + welcomeMsg.getStringData() + "\n continuing to wait for welcome... \n");
                         }
+                        inbox.remove(welcomeMsg);
+                        return true;
+                    } else if (welcomeMsg.isType(MOOSMsg.MOOS_POISON)) {
+                        // filthy MOOS
+                        moosTrace("MOOSDB Poisoned us, handshake() fail, why oh why?! : " + welcomeMsg.getStringData() + "\n");
+                        return false;
+                    } else {
+                        moosTrace("MOOSDB Handshake - Not welcome message?! : " + welcomeMsg.getStringData() + "\n continuing to wait for welcome... \n");
                     }
                 }
             }
-            moosTrace("MOOSDB Handshake Failed - no data?! : This probably means you are using an OLD MOOSDB! which doesn't accept the protocol string:" + MOOSCommPkt.MOOS_PROTOCOL_STRING);
-            return false;
-
-        } catch (IOException ex) {
-          //  ex.printStackTrace();
-            throw (ex);
-          //  return false;
         }
+        moosTrace("MOOSDB Handshake Failed - no data?! : This probably means you are using an OLD MOOSDB! which doesn't accept the protocol string:" + MOOSCommPkt.MOOS_PROTOCOL_STRING);
+        return false;
     }
 
     // Functions from C++ port
@@ -479,7 +1096,15 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * @return
      */
     public boolean isRegisteredFor(String variable) {
-        return this.subscribingList.containsKey(variable);
+        if (this.subscribingList.containsKey(variable)) {
+            return true;
+        }
+        for (MOOSWildcard w : wildcardList.keySet()) {
+            if (MOOSWildcard.globMatches(w.getVarPattern(), variable)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -488,12 +1113,16 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * @return whether this post was successful or not.
      */
     public boolean notify(MOOSMsg msg) {
-        if (!this.publishingList.contains(msg.getKey())) {
-            this.publishingList.add(msg.getKey());
-        }
+        addToPublishingList(msg.getKey());
         return post(msg);
     }
 
+    protected void addToPublishingList(String var) {
+        if (var != null) {
+            this.publishingList.add(var);
+        }
+    }
+
     /**
      * notify the MOOS community that something has changed (double)
      * @param var
@@ -502,9 +1131,7 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * @return
      */
     public boolean notify(String var, double dfVal, double dfTime) {
-        if (!this.publishingList.contains(var)) {
-            this.publishingList.add(var);
-        }
+        addToPublishingList(var);
         return post(new MOOSMsg(MOOS_NOTIFY, var, dfVal, dfTime));
 
     }
@@ -522,9 +1149,7 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         MOOSMsg msg = new MOOSMsg(MOOS_NOTIFY, var, dfVal, dfTime);
         msg.setSourceAuxInfo(srcAux);
 
-        if (!this.publishingList.contains(var)) {
-            this.publishingList.add(var);
-        }
+        addToPublishingList(var);
 
         return post(msg);
     }
@@ -537,9 +1162,7 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * @return
      */
     public boolean notify(String var, String sVal, double dfTime) {
-        if (!this.publishingList.contains(var)) {
-            this.publishingList.add(var);
-        }
+        addToPublishingList(var);
         return post(new MOOSMsg(MOOS_NOTIFY, var, sVal, dfTime));
 
     }
@@ -556,9 +1179,7 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         MOOSMsg msg = new MOOSMsg(MOOS_NOTIFY, var, sVal, dfTime);
         msg.setSourceAuxInfo(srcAux);
 
-        if (!this.publishingList.contains(var)) {
-            this.publishingList.add(var);
-        }
+        addToPublishingList(var);
 
         return post(msg);
     }
@@ -571,9 +1192,7 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * @return
      */
     public boolean notify(String var, byte[] binary, double dfTime) {
-        if (!this.publishingList.contains(var)) {
-            this.publishingList.add(var);
-        }
+        addToPublishingList(var);
         return post(new MOOSMsg(MOOS_NOTIFY, var, binary, dfTime));
 
     }
@@ -587,86 +1206,57 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * @return
      */
     public boolean notify(String var, byte[] binary, String srcAux, double dfTime) {
-        if (!this.publishingList.contains(var)) {
-            this.publishingList.add(var);
-        }
+        addToPublishingList(var);
         MOOSMsg msg = new MOOSMsg(MOOS_NOTIFY, var, binary, dfTime);
         msg.setSourceAuxInfo(srcAux);
 
         return post(msg);
     }
-    /*
-    bool CMOOSCommClient::ServerRequest(const string &sWhat,MOOSMSG_LIST  & MsgList, double dfTimeOut, bool bClear)
-    {
-    if(!IsConnected())
-    return false;
-    
-    CMOOSMsg Msg(MOOS_SERVER_REQUEST,sWhat.c_str(),"");
-    Post(Msg);
-
-    if(Msg.m_nID != MOOS_SERVER_REQUEST_ID)
-    {
-    return MOOSFail("Logical Error in ::ServerRequest");
-    }
-
-    int nSleep = 100;
-
-    double dfWaited = 0.0;
-
-    while(dfWaited<dfTimeOut)
-    {
-    if (Peek(MsgList, MOOS_SERVER_REQUEST_ID, bClear))
-    {
-    //OK we have our reply...
-    return true;
-    }
-    else
-    {
-    MOOSPause(nSleep);
-    dfWaited+=((double)nSleep)/1000.0;
-
-    }
+    /**
+     * notify the MOOS community of an array, sent as binary, see MOOSArrayCodec
+     * @param var The variable you are sending
+     * @param values the value
+     * @param dfTime the timestamp for the data
+     * @return
+     */
+    public boolean notify(String var, double[] values, double dfTime) {
+        return notify(var, MOOSArrayCodec.encode(values, false), dfTime);
     }
 
-    return false;
+    /**
+     * notify the MOOS community of an array, sent as binary, see MOOSArrayCodec
+     * @param var The variable you are sending
+     * @param values the value
+     * @param delta whether to delta encode the values, which makes slowly varying series smaller
+     * @param dfTime the timestamp for the data
+     * @return
+     */
+    public boolean notify(String var, double[] values, boolean delta, double dfTime) {
+        return notify(var, MOOSArrayCodec.encode(values, delta), dfTime);
     }
 
-    bool CMOOSCommClient::Peek(MOOSMSG_LIST & MsgList, int nIDRequired,bool bClear)
-    {
-    MsgList.clear();
-
-    m_InLock.Lock();
-
-    MOOSMSG_LIST::iterator p,q;
-
-    p=m_InBox.begin();
-    while(p!=m_InBox.end())
-    {
-    if(!p->IsType(MOOS_NULL_MSG))
-    {
-    //only give client non NULL Msgs
-    if(p->m_nID==nIDRequired)
-    {
-    //this is the correct ID!
-    MsgList.push_front(*p);
-    q=p++;
-    m_InBox.erase(q);
-    continue;
-    }
-    }
-    p++;
+    /**
+     * notify the MOOS community of an array, sent as binary, see MOOSArrayCodec
+     * @param var The variable you are sending
+     * @param values the value
+     * @param dfTime the timestamp for the data
+     * @return
+     */
+    public boolean notify(String var, float[] values, double dfTime) {
+        return notify(var, MOOSArrayCodec.encode(values, false), dfTime);
     }
 
-    //conditionally (ex MIT suggestion 2006) remove all elements
-    if(bClear)
-    m_InBox.clear();
-
-
-    m_InLock.UnLock();
-
-    return !MsgList.empty();
+    /**
+     * notify the MOOS community of an array, sent as binary, see MOOSArrayCodec
+     * @param var The variable you are sending
+     * @param values the value
+     * @param dfTime the timestamp for the data
+     * @return
+     */
+    public boolean notify(String var, int[] values, double dfTime) {
+        return notify(var, MOOSArrayCodec.encode(values, false), dfTime);
     }
-
+    /*
     //a static helper function
     bool CMOOSCommClient::PeekMail(MOOSMSG_LIST &Mail,
     const string &sKey,
@@ -737,9 +1327,27 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         for (String var : this.subscribingList.keySet()) {
             register(var, this.subscribingList.get(var));
         }
+        sendWildcardRegistrationPackets();
     }
 
+    protected void sendWildcardRegistrationPackets() {
+        for (MOOSWildcard w : wildcardList.keySet()) {
+            Double interval = wildcardList.get(w);
+            if (interval != null) {
+                register(w.getVarPattern(), w.getAppPattern(), interval);
+            }
+        }
+    }
+
+    /**
+     * @param var a variable name, or a pattern such as NAV_* (see register(String, String, double))
+     * @param interval
+     * @return
+     */
     public boolean register(String var, double interval) {
+        if (MOOSWildcard.isPattern(var)) {
+            return register(var, MOOSWildcard.ANY, interval);
+        }
         MOOSMsg MsgR = new MOOSMsg(MOOS_REGISTER, var, interval, 1.0);
         boolean bSuccess = post(MsgR);
         if (bSuccess || (this.socket == null || this.socket.isConnected())) {
@@ -753,6 +1361,9 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
     }
 
     protected boolean unRegister(String var) {
+        if (MOOSWildcard.isPattern(var)) {
+            return unRegister(var, MOOSWildcard.ANY);
+        }
         if (this.subscribingList.containsKey(var)) {
             MOOSMsg MsgUR = new MOOSMsg(MOOS_UNREGISTER, var, 0.0, 0.0);
             if (post(MsgUR)) {
@@ -767,7 +1378,65 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         }
     }
 
-    public synchronized boolean post(MOOSMsg msg) { // we don't need to lock in Java if all the methods which deal with the inbox/outbox are synchronized
+    /**
+     * Register for every variable whose name matches varPattern published by an app whose name matches appPattern.
+     * Patterns are globs, '*' for any run of characters and '?' for any one, e.g. ("NAV_*", "*") or ("*", "pHelmIvP").
+     * This needs a MOOSDB which understands MOOS_WILDCARD_REGISTER (V10 on), see setWildcardRegistrationSupported().
+     * @param varPattern
+     * @param appPattern
+     * @param interval
+     * @return false if it couldn't be sent
+     */
+    public boolean register(String varPattern, String appPattern, double interval) {
+        if (!wildcardRegistrationSupported) {
+            moosTrace("MOOSCommClient: the MOOSDB doesn't support wildcard registration of %s\n", varPattern);
+            return false;
+        }
+        MOOSWildcard wildcard = new MOOSWildcard(varPattern, appPattern);
+        boolean bSuccess = post(new MOOSMsg(MOOS_WILDCARD_REGISTER, name, wildcard.toRegistrationString(interval)));
+        if (bSuccess || (this.socket == null || this.socket.isConnected())) {
+            wildcardList.put(wildcard, interval);
+        }
+        return bSuccess;
+    }
+
+    /**
+     * Undo register(varPattern, appPattern, interval).
+     * @param varPattern
+     * @param appPattern
+     * @return false if it couldn't be sent
+     */
+    public boolean unRegister(String varPattern, String appPattern) {
+        MOOSWildcard wildcard = new MOOSWildcard(varPattern, appPattern);
+        if (!wildcardList.containsKey(wildcard)) {
+            return true;
+        }
+        if (post(new MOOSMsg(MOOS_WILDCARD_UNREGISTER, name, wildcard.toRegistrationString(0.0)))) {
+            wildcardList.remove(wildcard);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isWildcardRegistrationSupported() {
+        return wildcardRegistrationSupported;
+    }
+
+    /**
+     * @param wildcardRegistrationSupported whether the MOOSDB understands wildcard registrations. True by default,
+     * as any MOOSDB which accepts our protocol string does. Turn it off for a bridge or DB which doesn't, and
+     * register(String, String, double) will refuse rather than send something the DB ignores.
+     */
+    public void setWildcardRegistrationSupported(boolean wildcardRegistrationSupported) {
+        this.wildcardRegistrationSupported = wildcardRegistrationSupported;
+    }
+
+    /**
+     * Put a message in the outbox. This doesn't lock the client, so posting threads never wait for the I/O thread (except under MOOSOutbox.OverflowPolicy.BLOCK).
+     * @param msg
+     * @return false if we are not connected or the outbox overflow policy threw the message away
+     */
+    public boolean post(MOOSMsg msg) {
         if (socket == null || !this.socket.isConnected()) {
             return false;
         }
@@ -784,27 +1453,94 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
             msg.setMsgID(MOOS_SERVER_REQUEST_ID);
         } else {
             //set up Message ID;
-            msg.setMsgID(nextMsgID++);
+            msg.setMsgID(nextMsgID.getAndIncrement());
         }
 
-        outboxList.push(msg);
-
-        if (outboxList.size() > MAX_OUTBOX_MESSAGES) {
+        long dropped = outbox.getDroppedCount();
+        boolean queued = outbox.offer(msg);
+        if (outbox.getDroppedCount() != dropped) {
             moosTrace("\nThe outbox is very full. This is suspicious and dangerous.\n");
-            moosTrace("\nRemoving old unsent messages as new ones are added\n");
+            moosTrace("\nUnsent messages are being dropped (" + outbox.getOverflowPolicy() + ")\n");
             if (verbose) {
-                moosTrace("mOutbox size is " + outboxList.size() + "\n");
+                moosTrace("mOutbox size is " + outbox.size() + "\n");
             }
-            outboxList.remove(outboxList.lastElement());
         }
         if (verbose) {
             System.out.print("O:");
             msg.trace();
         }
+        requestFlush();
 
+        return queued;
+    }
+
+    /**
+     * Get the I/O thread to send the outbox now rather than waiting for the next tick. In polling mode there is nothing to wake so it goes on the next tick regardless.
+     */
+    protected void requestFlush() {
+        if (selectorLoop != null) {
+            flushRequested = true;
+            selectorLoop.wakeup();
+        } else if (writerThread != null) {
+            signalWriter();
+        }
+    }
+
+    /**
+     * Called by a MOOSPublisher when it has a new value to send.
+     */
+    protected void publisherDirty() {
+        publishersDirty = true;
+        requestFlush();
+    }
+
+    /**
+     * @return whether any publisher has been published to since the last call
+     */
+    protected boolean takePublishersDirty() {
+        if (!publishersDirty) {
+            return false;
+        }
+        publishersDirty = false; // clear before the publishers are read so a value published meanwhile isn't missed
         return true;
     }
 
+    /**
+     * Get a handle for publishing doubles to var without making a MOOSMsg each time, see MOOSPublisher.
+     * @param var
+     * @return a new handle
+     */
+    public synchronized MOOSDoublePublisher getDoublePublisher(String var) {
+        return addPublisher(new MOOSDoublePublisher(this, var, useNameAsSrc ? name : null));
+    }
+
+    /**
+     * Get a handle for publishing strings to var without making a MOOSMsg each time, see MOOSPublisher.
+     * @param var
+     * @return a new handle
+     */
+    public synchronized MOOSStringPublisher getStringPublisher(String var) {
+        return addPublisher(new MOOSStringPublisher(this, var, useNameAsSrc ? name : null));
+    }
+
+    protected <P extends MOOSPublisher> P addPublisher(P publisher) {
+        MOOSPublisher[] added = Arrays.copyOf(publishers, publishers.length + 1);
+        added[publishers.length] = publisher;
+        publishers = added;
+        addToPublishingList(publisher.getKey());
+        return publisher;
+    }
+
+    /**
+     * Stop sending values from a handle. Any value it has not yet sent is thrown away.
+     * @param publisher
+     */
+    public synchronized void removePublisher(MOOSPublisher publisher) {
+        ArrayList<MOOSPublisher> remaining = new ArrayList<MOOSPublisher>(Arrays.asList(publishers));
+        remaining.remove(publisher);
+        publishers = remaining.toArray(new MOOSPublisher[remaining.size()]);
+    }
+
     /**
      * This fails silently. Must satisfy: 0 < frequency <= 100
      * @param frequency
@@ -822,6 +1558,13 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         return;
     }
 
+    /**
+     * @return the period in ms between calls to iterate() when nothing else is happening
+     */
+    public long getTickPeriod() {
+        return (long) Math.floor(1000.0 / fundamentalFrequency);
+    }
+
     /**
      *
      * @return the fundamental frequency
@@ -841,7 +1584,12 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      * @param enable the enable to set
      */
     public void setEnable(boolean enable) {
-        if (!this.enable && enable) {
+        if (!this.enable && enable && reactor != null) {
+            // switch on, the reactor connects us and one of its selector threads serves us
+            this.enable = enable;
+            this.startTime = MOOSMsg.moosTimeNow();
+            reactor.connect(this);
+        } else if (!this.enable && enable) {
             // switch on
             if (theThread != null && theThread.isAlive()) {
                 theThread.stop(); // This is the most retarded peace of code ever, should never get called, also its dirty. Sanity check...
@@ -854,6 +1602,13 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         } else if (this.enable && !enable) {
             // switch off
             this.enable = enable;
+            if (selectorLoop != null) {
+                selectorLoop.wakeup();
+            }
+            Selector reader = readSelector;
+            if (reader != null) {
+                reader.wakeup();
+            }
         }
         //all other cases can be ignored - idempotent
 
@@ -942,6 +1697,146 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      */
     public synchronized void setMAX_INBOX_MESSAGES(int MAX_INBOX_MESSAGES) {
         this.MAX_INBOX_MESSAGES = MAX_INBOX_MESSAGES;
+        this.inbox.setMaxMessages(MAX_INBOX_MESSAGES);
+        if (this.compactInbox != null) {
+            this.compactInbox.setMaxMessages(MAX_INBOX_MESSAGES);
+        }
+    }
+
+    /**
+     * @return the most bytes of unread mail held before the oldest is dropped
+     */
+    public long getMAX_INBOX_BYTES() {
+        return MAX_INBOX_BYTES;
+    }
+
+    /**
+     * @param MAX_INBOX_BYTES the most bytes of unread mail held before the oldest is dropped
+     */
+    public synchronized void setMAX_INBOX_BYTES(long MAX_INBOX_BYTES) {
+        this.MAX_INBOX_BYTES = MAX_INBOX_BYTES;
+        this.inbox.setMaxBytes(MAX_INBOX_BYTES);
+        if (this.compactInbox != null) {
+            this.compactInbox.setMaxBytes(MAX_INBOX_BYTES);
+        }
+    }
+
+    /**
+     * @return the handler which sees received messages before the inbox, or null
+     */
+    public MOOSMsgView.Handler getViewHandler() {
+        return viewHandler;
+    }
+
+    /**
+     * Offer every received message to handler as a MOOSMsgView before it goes in the inbox. Messages the handler
+     * consumes are never decoded into MOOSMsgs, which lets high rate numeric mail be read without allocating.
+     * The handler is called on the I/O thread.
+     * @param handler or null to put everything straight in the inbox
+     */
+    public void setViewHandler(MOOSMsgView.Handler handler) {
+        this.viewHandler = handler;
+    }
+
+    /**
+     * @return the packet size in bytes from which outgoing packets are zlib compressed, or MOOSCommPkt.COMPRESSION_DISABLED
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Compress outgoing packets of at least compressionThreshold bytes, worthwhile over slow links for big string payloads such as NODE_REPORTs and appcasts.
+     * The MOOSDB must be able to inflate them. Compressed packets we receive are always inflated.
+     * @param compressionThreshold in bytes, or MOOSCommPkt.COMPRESSION_DISABLED to never compress (the default)
+     */
+    public synchronized void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        if (pktTx != null) {
+            pktTx.setCompressionThreshold(compressionThreshold);
+        }
+    }
+
+    /**
+     * @return whether mail is kept as MOOSCompactMsgs
+     */
+    public boolean isCompactInbox() {
+        return compactInbox != null;
+    }
+
+    /**
+     * Keep received mail as MOOSCompactMsgs, which take much less memory than MOOSMsgs, and decode it straight
+     * from the packet without making MOOSMsgs. Read it with drainNewCompactMsgs(); getNewMsgs() still works but
+     * converts every message back into a MOOSMsg.
+     * @param compact
+     */
+    public synchronized void setCompactInbox(boolean compact) {
+        if (compact && compactInbox == null) {
+            compactInbox = new MOOSInbox<MOOSCompactMsg>(MAX_INBOX_MESSAGES, MAX_INBOX_BYTES, arrivals);
+        } else if (!compact && compactInbox != null) {
+            synchronized (rxLock) { // so nothing more goes into the compact inbox once it is emptied
+                // hand anything left over to the normal inbox so it isn't lost, merging by arrival and keeping
+                // the sizes the messages were counted with
+                MOOSInbox<MOOSCompactMsg> left = compactInbox;
+                compactInbox = null;
+                MOOSInbox<MOOSMsg> merged = new MOOSInbox<MOOSMsg>(Integer.MAX_VALUE, Long.MAX_VALUE, arrivals);
+                long arrival;
+                while ((arrival = Math.min(inbox.getOldestArrival(), left.getOldestArrival())) != Long.MAX_VALUE) {
+                    if (inbox.getOldestArrival() == arrival) {
+                        int size = inbox.getOldestSize();
+                        merged.add(inbox.poll(), size, arrival);
+                    } else {
+                        int size = left.getOldestSize();
+                        MOOSCompactMsg m = left.poll();
+                        merged.add(m.toMOOSMsg(), size, arrival);
+                        m.release();
+                    }
+                }
+                while ((arrival = merged.getOldestArrival()) != Long.MAX_VALUE) {
+                    int size = merged.getOldestSize();
+                    inbox.add(merged.poll(), size, arrival);
+                }
+            }
+        }
+    }
+
+    /**
+     * The newest value of every variable received, updated as each packet arrives whatever happens to the mail.
+     * Values are only kept from the first call on, so call this before connecting to see everything.
+     * @return the latest values
+     */
+    public MOOSLatestValues getLatestValues() {
+        MOOSLatestValues latest = latestValues;
+        if (latest == null) {
+            synchronized (this) {
+                if (latestValues == null) {
+                    latestValues = new MOOSLatestValues();
+                }
+                latest = latestValues;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @param latestValues where to keep the newest value of every variable received, e.g. one shared with another client, or null to stop keeping them
+     */
+    public void setLatestValues(MOOSLatestValues latestValues) {
+        this.latestValues = latestValues;
+    }
+
+    /**
+     * @return the compact inbox, or null if mail is kept as MOOSMsgs
+     */
+    public MOOSInbox<MOOSCompactMsg> getCompactInbox() {
+        return compactInbox;
+    }
+
+    /**
+     * @return the inbox, for reading its size and drop counter
+     */
+    public MOOSInbox<MOOSMsg> getInbox() {
+        return inbox;
     }
 
     /**
@@ -956,6 +1851,31 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
      */
     public synchronized void setMAX_OUTBOX_MESSAGES(int MAX_OUTBOX_MESSAGES) {
         this.MAX_OUTBOX_MESSAGES = MAX_OUTBOX_MESSAGES;
+        this.outbox.setCapacity(MAX_OUTBOX_MESSAGES);
+    }
+
+    /**
+     * @return the outbox, for choosing its overflow policy and reading its drop counters
+     */
+    public MOOSOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Only send the newest value of var: a notify() which finds an unsent notification of var waiting in the outbox replaces it.
+     * @param var
+     * @param conflate
+     */
+    public void setConflated(String var, boolean conflate) {
+        outbox.setConflated(var, conflate);
+    }
+
+    /**
+     * Conflate every variable this client publishes, see setConflated().
+     * @param conflate
+     */
+    public void setConflateAll(boolean conflate) {
+        outbox.setConflateAll(conflate);
     }
 
     /**
@@ -972,7 +1892,56 @@ public class MOOSCommClient extends MOOSCommObject implements Runnable {
         this.autoReconnect = autoReconnect;
     }
 
+    /**
+     * @return the I/O mode, POLLING_IO_MODE, SELECTOR_IO_MODE or ASYNC_IO_MODE
+     */
+    public int getIOMode() {
+        return ioMode;
+    }
+
+    /**
+     * Takes effect on the next connection. SELECTOR_IO_MODE calls iterate() as soon as mail arrives or is posted, instead of once per tick.
+     * ASYNC_IO_MODE does the same with a reader and a writer thread, so a slow iterate() (i.e. MOOSEventServer listeners) never holds up sending.
+     * @param ioMode POLLING_IO_MODE, SELECTOR_IO_MODE or ASYNC_IO_MODE
+     */
+    public void setIOMode(int ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    /**
+     * @return the batching window in microseconds
+     */
+    public long getBatchingWindow() {
+        return batchingWindow;
+    }
+
+    /**
+     * In ASYNC_IO_MODE, how long the writer waits after the first post() for more mail to send in the same packet. 0 sends straight away.
+     * @param batchingWindow in microseconds
+     */
+    public void setBatchingWindow(long batchingWindow) {
+        this.batchingWindow = batchingWindow;
+    }
+
+    /**
+     * @return the shared reactor serving this client, or null if it runs its own thread
+     */
+    public MOOSReactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * Serve this client from a shared MOOSReactor rather than its own thread. This implies SELECTOR_IO_MODE. Takes effect the next time the client is enabled.
+     * @param reactor the reactor to use, or null to go back to a thread per client
+     */
+    public void setReactor(MOOSReactor reactor) {
+        this.reactor = reactor;
+        if (reactor != null) {
+            this.ioMode = SELECTOR_IO_MODE;
+        }
+    }
+
     public boolean outboxIsEmpty() {
-        return(this.outboxList.empty());
+        return(this.outbox.isEmpty());
     }
 }
@@ -49,6 +49,7 @@ public class MOOSCommObject {
 
     protected boolean verbose;
     protected MOOSMsg lastRead;
+    protected MOOSBufferPool bufferPool = MOOSBufferPool.getInstance();
 
     public MOOSCommObject() {
     }
@@ -81,6 +82,37 @@ public class MOOSCommObject {
         return false;
     }
 
+    /**
+     * Gathering version of sendPkt(), for the buffers returned by MOOSCommPkt.serializeGathering().
+     * @param sock
+     * @param segments the packet, written in order
+     * @return whether anything was written
+     */
+    public boolean sendPkt(SocketChannel sock, ByteBuffer[] segments) {
+        long written = 0;
+        try {
+            while (written >= 0 && hasRemaining(segments)) {
+                written += sock.write(segments);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return written > 0;
+    }
+
+    /**
+     * @param segments
+     * @return whether any of the buffers still have bytes to be written
+     */
+    public static boolean hasRemaining(ByteBuffer[] segments) {
+        for (int i = segments.length - 1; i >= 0; i--) {
+            if (segments[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean readPkt(SocketChannel sock, MOOSCommPkt pkt) throws IOException {
         int required = 0;
        // int iterations = 0;
@@ -116,10 +148,36 @@ public class MOOSCommObject {
         return true;
     }
 
+    /**
+     * Non-blocking counterpart to readPkt(). Reads whatever bytes the socket has waiting into pkt and returns straight away rather than sleeping until the rest of the packet arrives.
+     * @param sock
+     * @param pkt partially filled packet, call again with the same packet when more data is available
+     * @return true once pkt holds a whole packet, false if more bytes are still required
+     * @throws IOException if the connection has been closed by the other end
+     */
+    public boolean readPktNonBlocking(SocketChannel sock, MOOSCommPkt pkt) throws IOException {
+        try {
+            while (pkt.fill() > 0) {
+                ByteBuffer theBuffer = pkt.getBytes();
+                int count = sock.read(theBuffer);
+                theBuffer.flip(); // this is read on the next call of pkt.fill()
+                if (count < 0) {
+                    throw new IOException("Connection closed by the MOOSDB");
+                } else if (count == 0) {
+                    return false;
+                }
+            }
+        } catch (NoJavaZipCompressionSupportYetException e2) {
+            e2.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
     //Send a single message to the server
     public boolean sendMsg(SocketChannel sock, MOOSMsg msg) {
         //Create a packet with a single message
-        MOOSCommPkt pkt = new MOOSCommPkt();
+        MOOSCommPkt pkt = new MOOSCommPkt(bufferPool);
 
         ArrayList<MOOSMsg> msgList = new ArrayList<MOOSMsg>();
         msgList.add(msg);
@@ -135,10 +193,11 @@ public class MOOSCommObject {
 
     //Read a single message from the server
     public ArrayList<MOOSMsg> readMsgs(SocketChannel sock) throws IOException {
-        MOOSCommPkt pkt = new MOOSCommPkt();
+        MOOSCommPkt pkt = new MOOSCommPkt(bufferPool);
 
         if (readPkt(sock, pkt)) {
             pkt.deSerialize();
+            pkt.recycle();
             ArrayList<MOOSMsg> msgList = pkt.getMsgList();
             if (msgList != null && !msgList.isEmpty()) {
                 lastRead = pkt.getMsgList().get(0);
@@ -156,6 +215,20 @@ public class MOOSCommObject {
         return lastRead;
     }
 
+    /**
+     * @return the pool packet buffers are borrowed from
+     */
+    public MOOSBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @param bufferPool the pool packet buffers are borrowed from, e.g. one of direct buffers. Set this before connecting.
+     */
+    public void setBufferPool(MOOSBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
     /**
      * @return the verbose
      */
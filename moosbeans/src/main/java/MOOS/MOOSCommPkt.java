@@ -37,9 +37,13 @@ package MOOS;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
- * Currently no Zip compression is supported. It will throw an exception if a compressed packet is tried to decode.
+ * Packets may be zlib compressed: compressed packets are inflated by fill(), and outgoing packets at least as big as the compression threshold are deflated by serializeGathering().
  *  This is not a like for like C++ port. This uses java naming conventions. However, the methods for decoding are still serialize() in lower case.
  *
  * packet layout
@@ -67,6 +71,13 @@ import java.util.ArrayList;
  * string        [String * n Bytes]
  * ... next message
  *
+ * compressed packet layout, where the message bytes above are deflated as one zlib stream
+ * int [pktLenghtInt] length of the packet as sent
+ * int [numberMessages]
+ * byte [1]
+ * int [uncompressedLengthInt] length of the messages once inflated
+ * zlib [deflated messages]
+ *
  * @author Benjamin C. Davis
  */
 public class MOOSCommPkt {
@@ -81,15 +92,78 @@ public class MOOSCommPkt {
     protected int bytesRequired;// = MOOSMsg.INT_SIZE_IN_BYTES; // 1st 4 bytes contain length of packet in bytes
     // protected int currentSize = 0;
     protected ByteBuffer packetData;
+    // gathering write state, reused from packet to packet
+    public static final int DEFAULT_GATHER_BUFFER_SIZE = 4096;
+    protected ByteBuffer gatherHeader;
+    protected ByteBuffer gatherBuffer;
+    protected ArrayList<ByteBuffer> segments;
+    protected ArrayList<ByteBuffer> retiredGatherBuffers;
+    // buffer reuse
+    protected MOOSBufferPool pool;
+    protected ByteBuffer lengthData; // holds the 1st 4 bytes until we know how big the packet is
+    protected boolean pooled; // whether packetData came from the pool, in which case we hold a reference to owner
+    protected MOOSSharedBuffer owner; // what packetData belongs to, if anything. Binary messages retain it to keep pointing into packetData.
+    // zlib compression. The Deflater and Inflater hold native memory so they are shared by all the packets on a thread.
+    public static final int COMPRESSION_DISABLED = 0;
+    protected static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+    protected static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+    protected int compressionThreshold = COMPRESSION_DISABLED;
+    protected int compressionLevel = Deflater.BEST_SPEED;
+    protected byte[] deflated; // the deflated messages of the last packet, sent straight from this array
+    protected byte[] zipScratch; // for feeding zlib from buffers which have no array
 
     public MOOSCommPkt() {
+        this(MOOSBufferPool.getInstance());
+    }
+
+    /**
+     * @param pool where this packet borrows its buffers from
+     */
+    public MOOSCommPkt(MOOSBufferPool pool) {
+        this.pool = pool;
+        lengthData = MOOSMsg.allocate(MOOSMsg.INT_SIZE_IN_BYTES);
         resetFill();
     }
 
     public void resetFill() {
         bytesRequired = MOOSMsg.INT_SIZE_IN_BYTES; // 1st 4 bytes contain length of packet in bytes
-        packetData = MOOSMsg.allocate(bytesRequired); // ready for first data
+        packetLengthInBytes = 0;
+        lengthData.clear();
+        lengthData.putInt(0, 0); // don't mistake the last packet's length for this one's
+        packetData = lengthData; // ready for first data
+        pooled = false;
+        owner = null;
+    }
+
+    /**
+     * Give the packet buffer back to the pool and get ready to fill() the next packet. Any messages already decoded from this packet are unaffected,
+     * binary ones hold their own reference to the buffer.
+     */
+    public void recycle() {
+        if (pooled) {
+            owner.release();
+        }
+        resetFill();
+    }
 
+    /**
+     * Make a buffer from the pool our packetData, holding the first reference to it.
+     * @param pooledBuffer
+     */
+    protected void adopt(ByteBuffer pooledBuffer) {
+        packetData = pooledBuffer;
+        owner = new MOOSSharedBuffer(pool, pooledBuffer);
+        pooled = true;
     }
 
     protected void fillWholePacket() throws NoJavaZipCompressionSupportYetException {
@@ -100,14 +174,73 @@ public class MOOSCommPkt {
         // is it compressed?
         isCompressed = packetData.get() != 0;
         if (isCompressed) {
-            // Zip compresses to be completed
-            throw new NoJavaZipCompressionSupportYetException();
-        } else {
-            bytesRequired = 0;
+            inflatePacket();
         }
+        bytesRequired = 0;
 
     }
 
+    /**
+     * Swap the compressed packetData for a pooled buffer holding the same packet uncompressed, positioned after the header as if it had never been compressed.
+     * @throws NoJavaZipCompressionSupportYetException if the compressed data is corrupt
+     */
+    protected void inflatePacket() throws NoJavaZipCompressionSupportYetException {
+        int uncompressedLength = packetData.getInt();
+        if (uncompressedLength < 0 || uncompressedLength > DEFAULT_ASSUMMED_MAX_MOOS_MSG_SIZE) {
+            throw new NoJavaZipCompressionSupportYetException("Bad uncompressed length " + uncompressedLength + " in compressed packet");
+        }
+        ByteBuffer plain = pool.acquire(PACKET_HEADER_SIZE + uncompressedLength);
+        plain.putInt(PACKET_HEADER_SIZE + uncompressedLength);
+        plain.putInt(msgCount);
+        plain.put((byte) 0);
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        try {
+            if (packetData.hasArray()) {
+                inflater.setInput(packetData.array(), packetData.arrayOffset() + packetData.position(), packetData.remaining());
+            } else {
+                byte[] input = new byte[packetData.remaining()]; // direct buffers only
+                packetData.duplicate().get(input);
+                inflater.setInput(input);
+            }
+            while (plain.hasRemaining()) {
+                int n;
+                if (plain.hasArray()) {
+                    n = inflater.inflate(plain.array(), plain.arrayOffset() + plain.position(), plain.remaining());
+                    plain.position(plain.position() + n);
+                } else {
+                    byte[] scratch = getZipScratch();
+                    n = inflater.inflate(scratch, 0, Math.min(scratch.length, plain.remaining()));
+                    plain.put(scratch, 0, n);
+                }
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            pool.release(plain);
+            throw new NoJavaZipCompressionSupportYetException("Corrupt compressed packet: " + e.getMessage(), e);
+        }
+        if (plain.hasRemaining()) {
+            pool.release(plain);
+            throw new NoJavaZipCompressionSupportYetException("Compressed packet inflated to " + plain.position() + " bytes, expected " + plain.limit());
+        }
+        if (pooled) {
+            owner.release();
+        }
+        plain.position(PACKET_HEADER_SIZE);
+        adopt(plain);
+        packetLengthInBytes = plain.limit();
+        isCompressed = false;
+    }
+
+    protected byte[] getZipScratch() {
+        if (zipScratch == null) {
+            zipScratch = new byte[DEFAULT_GATHER_BUFFER_SIZE];
+        }
+        return zipScratch;
+    }
+
     /**
      * Once this method has been called, call serialise(list, false) or deSerialize() to use internal message list.
      * @param packetData
@@ -135,13 +268,17 @@ public class MOOSCommPkt {
                         if (this.packetLengthInBytes > MOOSCommPkt.DEFAULT_ASSUMMED_MAX_MOOS_MSG_SIZE) {
                                 System.err.println("MOOSCommPkt: Error! Packet Size > DEFAULT_ASSUMMED_MAX_MOOS_MSG_SIZE" + this.packetLengthInBytes + " -> If this is a size error it could crash us!!!");
                         }
-                        this.packetData = MOOSMsg.allocate(this.packetLengthInBytes).put(packetData); // create new buffer of correct length for full packet and add already collected data
+                        ByteBuffer wholePacket = pool.acquire(this.packetLengthInBytes); // borrow a buffer of correct length for full packet and add already collected data
+                        wholePacket.put(packetData);
+                        adopt(wholePacket);
                         this.bytesRequired = this.packetLengthInBytes - packetData.position();
                     }
                 }
             } else { // haven't got enough bytes for length yet.
-                packetData.position(packetData.limit());
-                return bytesRequired -= packetData.limit();
+                bytesRequired = MOOSMsg.INT_SIZE_IN_BYTES - packetData.limit();
+                packetData.position(packetData.limit()); // carry on writing where we got to
+                packetData.limit(packetData.capacity());
+                return bytesRequired;
             }
 
         } else { // already got the header
@@ -153,7 +290,7 @@ public class MOOSCommPkt {
             } else { // still waiting for data, calculate how much is left
                 this.bytesRequired = this.packetLengthInBytes - packetData.limit(); // how many bytes are still required... why did it not get them all the 1st time
                 this.packetData.position(packetData.limit()); // put current position to write bytes to where it got to before
-                this.packetData.limit(packetData.capacity()); // reset limit to end
+                this.packetData.limit(this.packetLengthInBytes); // reset limit to end of packet, pooled buffers may be bigger
             }
 
         }
@@ -212,14 +349,11 @@ public class MOOSCommPkt {
             // resize the ByteBuffer
             packetData = MOOSMsg.allocate(this.packetLengthInBytes);
 
-            // create header
+            // create header. This path never compresses, see serializeGathering()
+            isCompressed = false;
             packetData.putInt(this.packetLengthInBytes);
             packetData.putInt(msgCount);
-            if (isCompressed) {
-                packetData.put((byte) 1);
-            } else {
-                packetData.put((byte) 0);
-            }
+            packetData.put((byte) 0);
 
             // now add serialize the messages to the ByteBuffer
             for (MOOSMsg msg : messages) {
@@ -234,7 +368,7 @@ public class MOOSCommPkt {
             }
             for (int i = 0; i < msgCount; i++) {
                 MOOSMsg msg = new MOOSMsg();
-                msg.serialize(packetData, toStream);
+                msg.deserialize(packetData, owner);
                 messages.add(msg);
             }
             packetData.rewind(); //rewind
@@ -244,6 +378,175 @@ public class MOOSCommPkt {
         return true;
     }
 
+    /**
+     * Serialises the messages for a gathering write (SocketChannel.write(ByteBuffer[])), walking the list only once.
+     * The packet header and all the message fields are written into a buffer which is reused by later calls, while
+     * binary payloads are left in their own arrays and written from there, so large MOOS_BINARY_STRING messages
+     * are never copied into the packet. getBytes() is not updated by this method.
+     * If the packet is at least the compression threshold in size the messages are deflated, and sent that way if it makes them smaller.
+     * @param messages the messages to put in the packet
+     * @return the buffers which make up the packet, in order. They are only valid until the next call.
+     */
+    public ByteBuffer[] serializeGathering(List<MOOSMsg> messages) {
+        return serializeGathering(messages, null);
+    }
+
+    /**
+     * As serializeGathering(messages), followed by the values of any dirty publisher handles, which write themselves straight into the packet.
+     * @param messages the messages to put in the packet
+     * @param publishers handles to send the value of if they are dirty, or null
+     * @return the buffers which make up the packet, in order, or null if there turned out to be nothing to send. They are only valid until the next call.
+     */
+    public ByteBuffer[] serializeGathering(List<MOOSMsg> messages, MOOSPublisher[] publishers) {
+        if (gatherHeader == null) {
+            gatherHeader = MOOSMsg.allocate(PACKET_HEADER_SIZE + MOOSMsg.INT_SIZE_IN_BYTES); // room for the uncompressed length
+            gatherBuffer = pool.acquire(DEFAULT_GATHER_BUFFER_SIZE);
+            segments = new ArrayList<ByteBuffer>();
+            retiredGatherBuffers = new ArrayList<ByteBuffer>();
+        }
+        // the last packet has been written by now, so buffers we grew out of can go back to the pool
+        for (ByteBuffer retired : retiredGatherBuffers) {
+            pool.release(retired);
+        }
+        retiredGatherBuffers.clear();
+        segments.clear();
+        gatherHeader.clear();
+        gatherBuffer.clear();
+        segments.add(gatherHeader);
+
+        this.packetLengthInBytes = PACKET_HEADER_SIZE;
+        this.msgCount = messages.size();
+        int segmentStart = 0;
+        for (MOOSMsg msg : messages) {
+            int size = msg.getSizeInBytesWhenSerialised();
+            int payloadSize = msg.getGatherPayloadLength();
+            this.packetLengthInBytes += size;
+            if (gatherBuffer.remaining() < size - payloadSize) {
+                // out of room, finish this segment and carry on in a bigger buffer. Earlier segments still point at the old one.
+                addSegment(segmentStart);
+                retiredGatherBuffers.add(gatherBuffer);
+                gatherBuffer = pool.acquire(Math.max(2 * gatherBuffer.capacity(), size - payloadSize));
+                segmentStart = 0;
+            }
+            ByteBuffer payload = msg.serializeGathering(gatherBuffer);
+            if (payload != null && payload.hasRemaining()) {
+                addSegment(segmentStart);
+                segmentStart = gatherBuffer.position();
+                segments.add(payload);
+            }
+        }
+        if (publishers != null) {
+            for (int i = 0; i < publishers.length; i++) {
+                int size;
+                while ((size = publishers[i].writeTo(gatherBuffer)) < 0) {
+                    addSegment(segmentStart);
+                    retiredGatherBuffers.add(gatherBuffer);
+                    gatherBuffer = pool.acquire(Math.max(2 * gatherBuffer.capacity(), -size));
+                    segmentStart = 0;
+                }
+                if (size > 0) {
+                    this.packetLengthInBytes += size;
+                    this.msgCount++;
+                }
+            }
+            if (msgCount == 0) {
+                return null;
+            }
+        }
+        addSegment(segmentStart);
+
+        int uncompressedLength = this.packetLengthInBytes - PACKET_HEADER_SIZE;
+        int deflatedLength = -1;
+        if (compressionThreshold > COMPRESSION_DISABLED && this.packetLengthInBytes >= compressionThreshold) {
+            deflatedLength = deflateSegments(uncompressedLength);
+        }
+        isCompressed = deflatedLength >= 0;
+        if (isCompressed) {
+            this.packetLengthInBytes = PACKET_HEADER_SIZE + MOOSMsg.INT_SIZE_IN_BYTES + deflatedLength;
+            segments.subList(1, segments.size()).clear();
+            segments.add(ByteBuffer.wrap(deflated, 0, deflatedLength));
+        }
+
+        gatherHeader.putInt(this.packetLengthInBytes);
+        gatherHeader.putInt(msgCount);
+        gatherHeader.put((byte) (isCompressed ? 1 : 0));
+        if (isCompressed) {
+            gatherHeader.putInt(uncompressedLength);
+        }
+        gatherHeader.flip();
+
+        return segments.toArray(new ByteBuffer[segments.size()]);
+    }
+
+    /**
+     * Deflate the message segments (everything after the header) into the deflated array.
+     * @param uncompressedLength total bytes in the message segments
+     * @return the deflated length, or -1 if compressing didn't make the packet any smaller
+     */
+    protected int deflateSegments(int uncompressedLength) {
+        int limit = uncompressedLength - MOOSMsg.INT_SIZE_IN_BYTES; // must save more than the extra header int
+        if (limit <= 0) {
+            return -1;
+        }
+        if (deflated == null || deflated.length < limit) {
+            deflated = new byte[limit];
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(compressionLevel);
+        int length = 0;
+        for (int i = 1; i < segments.size(); i++) {
+            ByteBuffer segment = segments.get(i);
+            if (segment.hasArray()) {
+                deflater.setInput(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+                length = deflate(deflater, length, limit);
+            } else {
+                byte[] scratch = getZipScratch();
+                ByteBuffer source = segment.duplicate();
+                while (source.hasRemaining() && length >= 0) {
+                    int n = Math.min(scratch.length, source.remaining());
+                    source.get(scratch, 0, n);
+                    deflater.setInput(scratch, 0, n);
+                    length = deflate(deflater, length, limit);
+                }
+            }
+            if (length < 0) {
+                return -1;
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (length == limit) {
+                return -1;
+            }
+            length += deflater.deflate(deflated, length, limit - length);
+        }
+        return length;
+    }
+
+    /**
+     * Run the deflater until it has consumed its input.
+     * @return the new deflated length, or -1 if it reached limit
+     */
+    protected int deflate(Deflater deflater, int length, int limit) {
+        while (!deflater.needsInput()) {
+            if (length == limit) {
+                return -1;
+            }
+            length += deflater.deflate(deflated, length, limit - length);
+        }
+        return length;
+    }
+
+    protected void addSegment(int segmentStart) {
+        if (gatherBuffer.position() > segmentStart) {
+            ByteBuffer segment = gatherBuffer.duplicate();
+            segment.limit(gatherBuffer.position());
+            segment.position(segmentStart);
+            segments.add(segment);
+        }
+    }
+
     /**
      *
      * @return returns the ByteBuffer created from the messages. Returns null is serialize(..) hasn't been called, and a such the packet is empty.
@@ -257,8 +560,19 @@ public class MOOSCommPkt {
      * @param the ByteBuffer full of MOOS packet data.
      */
     public void setBytes(ByteBuffer data) {
-        this.resetFill();
+        setBytes(data, null);
+    }
+
+    /**
+     *  As setBytes(data), where data points into a shared buffer such as the receive buffer of a MOOSPacketFramer.
+     *  Binary messages decoded from the packet retain owner and point into it rather than copying their payload.
+     * @param data the ByteBuffer full of MOOS packet data
+     * @param owner the buffer data belongs to, or null if it can't be shared
+     */
+    public void setBytes(ByteBuffer data, MOOSSharedBuffer owner) {
+        this.recycle();
         this.packetData = data;
+        this.owner = owner;
     }
 
     /**
@@ -284,4 +598,39 @@ public class MOOSCommPkt {
     public int getPacketLengthInBytes() {
         return this.packetLengthInBytes;
     }
+
+    /**
+     * @return whether the last packet sent or received was compressed
+     */
+    public boolean isCompressed() {
+        return isCompressed;
+    }
+
+    /**
+     * @return the packet size in bytes from which serializeGathering() compresses, or COMPRESSION_DISABLED
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold compress packets at least this many bytes long, or COMPRESSION_DISABLED to never compress
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return the zlib level, Deflater.BEST_SPEED unless set
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel a zlib level from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
 }
@@ -0,0 +1,298 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A lightweight alternative to MOOSMsg for holding received mail, which doesn't change once made except that
+ * release() lets go of a received binary payload. It is not an EventObject and keeps
+ * only what a received message needs: no event source, playback flag, second double, message length or ID, and
+ * one data field which holds a String for string messages, a byte[] for binary ones and nothing for doubles.
+ * Identifiers come from the MOOSStringTable so they are shared between messages.
+ *
+ * A compact copy of a received binary message points into the receive buffer rather than copying the payload,
+ * taking over a MOOSMsg's hold on it or taking its own from a MOOSMsgView; call release() when done with it to
+ * let the buffer go back to the pool.
+ *
+ * Use MOOSCommClient.setCompactInbox() to have mail decoded straight into these, and toMOOSMsg() / from() to
+ * convert when code expecting MOOSMsgs (MOOSMsgEventListener, MOOSApp.onNewMail) needs one.
+ */
+public final class MOOSCompactMsg {
+
+    protected final char msgType;
+    protected final char dataType;
+    protected final String key;
+    protected final String source;
+    protected final String sourceAuxInfo;
+    protected final String community;
+    protected final double time;
+    protected final double doubleData;
+    protected Object data; // String for MOOS_STRING, byte[] or read only ByteBuffer for MOOS_BINARY_STRING, null for MOOS_DOUBLE
+    protected MOOSSharedBuffer owner; // what a ByteBuffer data points into, until release()
+    protected boolean released; // the payload was in a receive buffer which has been let go
+
+    protected MOOSCompactMsg(char msgType, char dataType, String key, String source, String sourceAuxInfo, String community, double time, double doubleData, Object data) {
+        this.msgType = msgType;
+        this.dataType = dataType;
+        this.key = key;
+        this.source = source;
+        this.sourceAuxInfo = sourceAuxInfo;
+        this.community = community;
+        this.time = time;
+        this.doubleData = doubleData;
+        this.data = data;
+    }
+
+    public MOOSCompactMsg(char msgType, String key, double doubleData, double time) {
+        this(msgType, MOOSMsg.MOOS_DOUBLE, key, "", "", "", time, doubleData, null);
+    }
+
+    public MOOSCompactMsg(char msgType, String key, String stringData, double time) {
+        this(msgType, MOOSMsg.MOOS_STRING, key, "", "", "", time, -1, stringData);
+    }
+
+    public MOOSCompactMsg(char msgType, String key, byte[] binaryData, double time) {
+        this(msgType, MOOSMsg.MOOS_BINARY_STRING, key, "", "", "", time, -1, binaryData);
+    }
+
+    /**
+     * The compact copy of a received binary message shares its payload and takes over the hold on it, so msg is
+     * released, and its payload is gone if that was the last hold.
+     * @param msg
+     * @return a compact copy of msg
+     */
+    public static MOOSCompactMsg from(MOOSMsg msg) {
+        Object data = null;
+        MOOSSharedBuffer owner = null;
+        if (msg.dataType == MOOSMsg.MOOS_STRING) {
+            data = msg.stringData;
+        } else if (msg.dataType == MOOSMsg.MOOS_BINARY_STRING) {
+            synchronized (msg) {
+                if (msg.binaryData != null) {
+                    data = msg.binaryData;
+                } else if (msg.binaryBuffer != null) {
+                    data = msg.binaryBuffer;
+                    owner = msg.binaryOwner.retain();
+                }
+            }
+            msg.release();
+        }
+        MOOSCompactMsg compact = new MOOSCompactMsg(msg.msgType, msg.dataType, msg.varName, msg.source, msg.sourceAuxInfo, msg.community, msg.time, msg.doubleData, data);
+        compact.owner = owner;
+        return compact;
+    }
+
+    /**
+     * Decode the message under a view without going through a MOOSMsg. A binary payload in a shared packet
+     * buffer (see MOOSMsgView.getOwner()) is left where it is and the compact message retains the buffer, so
+     * call release() when done with it; otherwise the payload is copied.
+     * @param view
+     * @return a compact copy of the view's current message
+     */
+    public static MOOSCompactMsg from(MOOSMsgView view) {
+        char dataType = view.getDataType();
+        Object data = null;
+        MOOSSharedBuffer owner = null;
+        if (dataType == MOOSMsg.MOOS_STRING) {
+            data = view.getStringData();
+        } else if (dataType == MOOSMsg.MOOS_BINARY_STRING) {
+            owner = view.getOwner();
+            if (owner != null) {
+                data = view.getDataBuffer();
+                owner.retain();
+            } else {
+                data = view.getBinaryData(); // the packet won't last
+            }
+        }
+        MOOSCompactMsg compact = new MOOSCompactMsg(view.getMsgType(), dataType, view.getKey(), view.getSource(), view.getSourceAuxInfo(), view.getCommunity(), view.getTime(), view.getDoubleData(), data);
+        compact.owner = owner;
+        return compact;
+    }
+
+    /**
+     * @return a full MOOSMsg with the same contents, for code which needs one. A received binary payload is
+     * shared, the MOOSMsg taking a hold of its own.
+     * @throws IllegalStateException if the binary payload has been released
+     */
+    public MOOSMsg toMOOSMsg() {
+        return toMOOSMsg(true);
+    }
+
+    /**
+     * @param payload whether to include a binary payload, which toString() doesn't need
+     */
+    protected MOOSMsg toMOOSMsg(boolean payload) {
+        MOOSMsg msg;
+        if (dataType == MOOSMsg.MOOS_BINARY_STRING) {
+            msg = new MOOSMsg(msgType, key, (byte[]) null, time);
+            if (payload) {
+                synchronized (this) {
+                    checkNotReleased();
+                    if (owner != null) {
+                        msg.setBinaryBuffer((ByteBuffer) data, owner); // sharing the payload, with a hold of its own
+                    } else {
+                        msg.setBinaryData((byte[]) data);
+                    }
+                }
+            }
+            msg.doubleData = doubleData;
+        } else if (dataType == MOOSMsg.MOOS_STRING) {
+            msg = new MOOSMsg(msgType, key, (String) data, time);
+            msg.doubleData = doubleData;
+        } else {
+            msg = new MOOSMsg(msgType, key, doubleData, time);
+        }
+        msg.dataType = dataType;
+        msg.time = time; // the constructors take -1 to mean now
+        msg.source = source;
+        msg.sourceAuxInfo = sourceAuxInfo;
+        msg.community = community;
+        return msg;
+    }
+
+    public char getMsgType() {
+        return msgType;
+    }
+
+    public char getDataType() {
+        return dataType;
+    }
+
+    public boolean isType(char cType) {
+        return msgType == cType;
+    }
+
+    public boolean isDouble() {
+        return dataType == MOOSMsg.MOOS_DOUBLE;
+    }
+
+    public boolean isString() {
+        return dataType == MOOSMsg.MOOS_STRING;
+    }
+
+    public boolean isBinary() {
+        return dataType == MOOSMsg.MOOS_BINARY_STRING;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getSourceAuxInfo() {
+        return sourceAuxInfo;
+    }
+
+    public String getCommunity() {
+        return community;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public double getDoubleData() {
+        return doubleData;
+    }
+
+    /**
+     * @return the string data, or null if this isn't a string message
+     */
+    public String getStringData() {
+        return data instanceof String ? (String) data : null;
+    }
+
+    /**
+     * @return the binary data, or null if this isn't a binary message. Not a copy, so don't modify it, except
+     * for a received payload, which is copied from the receive buffer each call; getBinaryBuffer() avoids that.
+     */
+    public synchronized byte[] getBinaryData() {
+        checkNotReleased();
+        if (data instanceof ByteBuffer) {
+            ByteBuffer payload = ((ByteBuffer) data).duplicate();
+            byte[] copy = new byte[payload.remaining()];
+            payload.get(copy);
+            return copy;
+        }
+        return data instanceof byte[] ? (byte[]) data : null;
+    }
+
+    /**
+     * @return a read only buffer over the binary data, which for a received payload points into the receive
+     * buffer and is only good until release(). Null if this isn't a binary message.
+     */
+    public synchronized ByteBuffer getBinaryBuffer() {
+        checkNotReleased();
+        if (data instanceof ByteBuffer) {
+            return ((ByteBuffer) data).duplicate();
+        }
+        return data instanceof byte[] ? ByteBuffer.wrap((byte[]) data).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Let go of the receive buffer a received binary payload points into, after which the payload is gone and
+     * reading it throws an IllegalStateException, since the buffer may already hold another packet. Harmless
+     * for any other message, and safe to call more than once.
+     */
+    public synchronized void release() {
+        if (owner != null) {
+            data = null;
+            released = true;
+            owner.release();
+            owner = null;
+        }
+    }
+
+    /**
+     * @return whether release() has let go of a received binary payload
+     */
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    protected void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("MOOSCompactMsg: binary payload of " + key + " read after release()");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toMOOSMsg(false).strTrace().trim();
+    }
+}
@@ -0,0 +1,553 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Maps variable names to the MOOSMsgEventListeners which want them, for MOOSEventServer.
+ *
+ * Listeners subscribe to exact variable names, or to MOOSWildcards such as NAV_* which are compiled into a
+ * MOOSPatternMatcher. The first time a variable turns up, its exact listeners and those of every matching wildcard
+ * are resolved into an Entry, which is cached, so each later message costs one hash lookup however many
+ * listeners and patterns there are. An Entry is never changed: add() and remove() update the subscriptions and
+ * throw away the Entries they affect, so dispatch() reads them without taking any lock and can't see one half
+ * updated. Changes (which happen when listeners come and go) lock the table, dispatch (which happens every
+ * iterate) only does when it meets a variable for the first time. A reverse index from listener to its
+ * subscriptions makes remove() touch only that listener's entries.
+ *
+ * dispatch() groups a batch of mail by variable into lists kept on each Entry and reused from batch to batch, so
+ * the batch costs no allocation once the lists have grown. It must only be called from one thread at a time.
+ *
+ * A listener can ask for a variable no more often than every so many seconds (as MOOSMsgEventListeners do with
+ * getRequiredMsgIntervals()). The MOOSDB can only send this client each variable at one rate, the fastest anybody
+ * wants, so the table decimates for the slower listeners: a listener whose interval hasn't passed since the last
+ * message it was sent of a variable gets nothing, otherwise it gets just the newest message, as the MOOSDB would
+ * have sent it. The listeners asking for the fastest rate get everything, since that is the rate the MOOSDB sends
+ * at, and message times are compared with a tolerance of DECIMATION_TOLERANCE of the interval so that mail a
+ * little early through jitter isn't held back a whole interval. The times are kept on each listener's
+ * MOOSListenerQueue, so they survive the Entries being thrown away, and the Entry holds them in primitive arrays,
+ * so this costs no allocation either.
+ *
+ * Each listener is called through its own MOOSListenerQueue, which times it. Normally the listeners are called
+ * in turn on the dispatching thread, but given an executor the table hands each listener's mail to its queue
+ * instead, so listeners run in parallel, each still getting its own mail in order.
+ */
+public class MOOSDispatchTable {
+
+    protected static final MOOSListenerQueue[] NO_LISTENERS = new MOOSListenerQueue[0];
+    protected static final MOOSWildcard[][] NO_FILTERS = new MOOSWildcard[0][];
+    /**
+     * The fraction of its interval by which a message may come early and still be passed to a decimated listener
+     */
+    public static final double DECIMATION_TOLERANCE = 0.1;
+
+    /**
+     * Everybody listening to one variable.
+     */
+    protected static class Entry {
+
+        protected final String var;
+        protected final MOOSListenerQueue[] listeners;
+        // for each listener, the source app patterns one of which a message must match, or null for any source
+        protected final MOOSWildcard[][] filters;
+        // for each listener, the least time between messages, 0 for no decimation, and a holder for the time
+        // of the last message it was sent, which belongs to its MOOSListenerQueue (null if not decimated)
+        protected final double[] intervals;
+        protected final double[][] lastDelivered;
+        // this batch's mail for the variable, only touched by the dispatching thread
+        protected final ArrayList<MOOSMsg> pending = new ArrayList<MOOSMsg>();
+
+        protected Entry(String var, MOOSListenerQueue[] listeners, MOOSWildcard[][] filters, double[] intervals) {
+            this.var = var;
+            this.listeners = listeners;
+            this.filters = filters;
+            this.intervals = intervals;
+            this.lastDelivered = new double[listeners.length][];
+            double min = Double.MAX_VALUE;
+            for (double interval : intervals) {
+                min = Math.min(min, interval);
+            }
+            for (int i = 0; i < intervals.length; i++) {
+                if (intervals[i] <= min) {
+                    intervals[i] = 0; // the MOOSDB sends at this rate already
+                } else {
+                    lastDelivered[i] = listeners[i].lastDelivered(var);
+                }
+            }
+        }
+    }
+    // subscriptions, guarded by the table
+    protected final HashMap<String, MOOSListenerQueue[]> exact = new HashMap<String, MOOSListenerQueue[]>();
+    protected final MOOSPatternMatcher<MOOSListenerQueue> patterns = new MOOSPatternMatcher<MOOSListenerQueue>();
+    protected final IdentityHashMap<MOOSMsgEventListener, Set<String>> variablesByListener = new IdentityHashMap<MOOSMsgEventListener, Set<String>>();
+    protected final IdentityHashMap<MOOSMsgEventListener, Set<MOOSWildcard>> patternsByListener = new IdentityHashMap<MOOSMsgEventListener, Set<MOOSWildcard>>();
+    protected final IdentityHashMap<MOOSMsgEventListener, MOOSListenerQueue> queues = new IdentityHashMap<MOOSMsgEventListener, MOOSListenerQueue>();
+    // resolved subscriptions, read without locking
+    protected final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    protected volatile Executor executor;
+    protected int queueLength = MOOSListenerQueue.DEFAULT_QUEUE_LENGTH;
+    protected MOOSListenerQueue.OverflowPolicy overflowPolicy = MOOSListenerQueue.OverflowPolicy.DROP_OLDEST;
+    // only touched by the dispatching thread
+    protected final ArrayList<Entry> touched = new ArrayList<Entry>(); // entries with mail in this batch, in order of first message
+    protected final ArrayList<MOOSMsg> filtered = new ArrayList<MOOSMsg>();
+
+    protected MOOSListenerQueue queueFor(MOOSMsgEventListener listener) {
+        MOOSListenerQueue queue = queues.get(listener);
+        if (queue == null) {
+            queue = new MOOSListenerQueue(listener, queueLength);
+            queue.setOverflowPolicy(overflowPolicy);
+            queues.put(listener, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * @param var
+     * @param listener
+     * @return true if listener wasn't already listening to var
+     */
+    public boolean add(String var, MOOSMsgEventListener listener) {
+        return add(var, listener, 0);
+    }
+
+    /**
+     * @param var
+     * @param listener
+     * @param interval the least time in seconds between calls to listener for var, 0 for every message. Replaces
+     * the interval if listener was already listening to var.
+     * @return true if listener wasn't already listening to var
+     */
+    public synchronized boolean add(String var, MOOSMsgEventListener listener, double interval) {
+        MOOSListenerQueue queue = queueFor(listener);
+        queue.intervals.put(var, interval);
+        entries.remove(var);
+        MOOSListenerQueue[] old = exact.get(var);
+        if (old == null) {
+            old = NO_LISTENERS;
+        }
+        for (MOOSListenerQueue q : old) {
+            if (q == queue) {
+                return false;
+            }
+        }
+        MOOSListenerQueue[] listeners = new MOOSListenerQueue[old.length + 1];
+        System.arraycopy(old, 0, listeners, 0, old.length);
+        listeners[old.length] = queue;
+        exact.put(var, listeners);
+
+        Set<String> vars = variablesByListener.get(listener);
+        if (vars == null) {
+            vars = new LinkedHashSet<String>();
+            variablesByListener.put(listener, vars);
+        }
+        vars.add(var);
+        return true;
+    }
+
+    /**
+     * Send listener every variable matching a wildcard.
+     * @param wildcard
+     * @param listener
+     * @return true if listener didn't already have this wildcard
+     */
+    public boolean add(MOOSWildcard wildcard, MOOSMsgEventListener listener) {
+        return add(wildcard, listener, 0);
+    }
+
+    /**
+     * Send listener every variable matching a wildcard.
+     * @param wildcard
+     * @param listener
+     * @param interval the least time in seconds between calls to listener for each matching variable, 0 for every message
+     * @return true if listener didn't already have this wildcard
+     */
+    public synchronized boolean add(MOOSWildcard wildcard, MOOSMsgEventListener listener, double interval) {
+        MOOSListenerQueue queue = queueFor(listener);
+        queue.intervals.put(wildcard, interval);
+        entries.clear(); // any variable might match
+        if (!patterns.add(wildcard, queue)) {
+            return false;
+        }
+        Set<MOOSWildcard> wildcards = patternsByListener.get(listener);
+        if (wildcards == null) {
+            wildcards = new LinkedHashSet<MOOSWildcard>();
+            patternsByListener.put(listener, wildcards);
+        }
+        wildcards.add(wildcard);
+        return true;
+    }
+
+    /**
+     * Stop listener receiving any variable. Its wildcards go too, see getPatterns().
+     * @param listener
+     * @return the exact variables it was listening to, possibly empty
+     */
+    public synchronized Set<String> remove(MOOSMsgEventListener listener) {
+        Set<String> vars = variablesByListener.remove(listener);
+        Set<MOOSWildcard> wildcards = patternsByListener.remove(listener);
+        MOOSListenerQueue queue = queues.remove(listener);
+        if (queue == null) {
+            return Collections.emptySet();
+        }
+        queue.close();
+        if (wildcards != null) {
+            for (MOOSWildcard wildcard : wildcards) {
+                patterns.remove(wildcard, queue);
+            }
+            entries.clear();
+        }
+        if (vars == null) {
+            return Collections.emptySet();
+        }
+        for (String var : vars) {
+            MOOSListenerQueue[] old = exact.get(var);
+            if (old == null) {
+                continue;
+            }
+            entries.remove(var);
+            if (old.length == 1 && old[0] == queue) {
+                exact.remove(var);
+                continue;
+            }
+            MOOSListenerQueue[] listeners = new MOOSListenerQueue[old.length - 1];
+            int n = 0;
+            for (MOOSListenerQueue q : old) {
+                if (q != queue && n < listeners.length) {
+                    listeners[n++] = q;
+                }
+            }
+            exact.put(var, listeners);
+        }
+        return vars;
+    }
+
+    /**
+     * Find who is listening to var: its own listeners, then those of any matching wildcards. A listener which
+     * is in both, or matches more than one wildcard, is only called once per message.
+     */
+    protected synchronized Entry resolve(String var) {
+        Entry entry = entries.get(var);
+        if (entry != null) {
+            return entry; // somebody beat us to it
+        }
+        MOOSListenerQueue[] own = exact.get(var);
+        ArrayList<MOOSListenerQueue> listeners = new ArrayList<MOOSListenerQueue>();
+        ArrayList<MOOSWildcard[]> filters = new ArrayList<MOOSWildcard[]>();
+        ArrayList<Double> intervals = new ArrayList<Double>();
+        if (own != null) {
+            for (MOOSListenerQueue q : own) {
+                listeners.add(q);
+                filters.add(null);
+                intervals.add(q.getInterval(var));
+            }
+        }
+        if (patterns.size() > 0) {
+            ArrayList<MOOSWildcard> wildcards = new ArrayList<MOOSWildcard>();
+            ArrayList<MOOSListenerQueue> queues = new ArrayList<MOOSListenerQueue>();
+            patterns.match(var, wildcards, queues);
+            for (int i = 0; i < queues.size(); i++) {
+                MOOSListenerQueue q = queues.get(i);
+                MOOSWildcard w = wildcards.get(i);
+                int index = listeners.indexOf(q);
+                if (index < 0) {
+                    listeners.add(q);
+                    filters.add(w.getAppPattern().equals(MOOSWildcard.ANY) ? null : new MOOSWildcard[]{w});
+                    intervals.add(q.getInterval(w));
+                    continue;
+                }
+                intervals.set(index, Math.min(intervals.get(index), q.getInterval(w))); // the faster asked for wins
+                if (filters.get(index) != null) {
+                    MOOSWildcard[] f = filters.get(index);
+                    if (w.getAppPattern().equals(MOOSWildcard.ANY)) {
+                        filters.set(index, null);
+                    } else {
+                        MOOSWildcard[] more = new MOOSWildcard[f.length + 1];
+                        System.arraycopy(f, 0, more, 0, f.length);
+                        more[f.length] = w;
+                        filters.set(index, more);
+                    }
+                }
+            }
+        }
+        double[] interval = new double[intervals.size()];
+        for (int i = 0; i < interval.length; i++) {
+            interval[i] = intervals.get(i);
+        }
+        entry = new Entry(var, listeners.isEmpty() ? NO_LISTENERS : listeners.toArray(new MOOSListenerQueue[listeners.size()]),
+                filters.isEmpty() ? NO_FILTERS : filters.toArray(new MOOSWildcard[filters.size()][]), interval);
+        if (entries.size() >= MOOSPatternMatcher.MAX_MEMO) {
+            entries.clear(); // a stream of unique names mustn't fill the heap
+        }
+        entries.put(var, entry);
+        return entry;
+    }
+
+    /**
+     * @param var
+     * @return the listeners for var, including those of matching wildcards, empty if there are none
+     */
+    public MOOSMsgEventListener[] getListeners(String var) {
+        Entry entry = entries.get(var);
+        if (entry == null) {
+            entry = resolve(var);
+        }
+        MOOSMsgEventListener[] listeners = new MOOSMsgEventListener[entry.listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = entry.listeners[i].getListener();
+        }
+        return listeners;
+    }
+
+    /**
+     * @param var
+     * @return whether anybody is listening to var by name (wildcards aside)
+     */
+    public synchronized boolean hasListeners(String var) {
+        return exact.containsKey(var);
+    }
+
+    /**
+     * @param var
+     * @return the shortest interval any listener has asked for var by name, which is what the MOOSDB should send
+     * at, or -1 if nobody is listening to it
+     */
+    public synchronized double getMinInterval(String var) {
+        MOOSListenerQueue[] listeners = exact.get(var);
+        if (listeners == null) {
+            return -1;
+        }
+        double min = Double.MAX_VALUE;
+        for (MOOSListenerQueue q : listeners) {
+            min = Math.min(min, q.getInterval(var));
+        }
+        return min;
+    }
+
+    /**
+     * @param wildcard
+     * @return the shortest interval any listener has asked for wildcard, or -1 if nobody is listening to it
+     */
+    public synchronized double getMinInterval(MOOSWildcard wildcard) {
+        if (!patterns.contains(wildcard)) {
+            return -1;
+        }
+        double min = Double.MAX_VALUE;
+        for (MOOSListenerQueue q : queues.values()) {
+            Double interval = q.intervals.get(wildcard);
+            if (interval != null) {
+                min = Math.min(min, interval);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @param wildcard
+     * @return whether anybody is listening to wildcard
+     */
+    public boolean hasListeners(MOOSWildcard wildcard) {
+        return patterns.contains(wildcard);
+    }
+
+    /**
+     * @param listener
+     * @return the queue delivering to listener, for its statistics, or null if it isn't in the table
+     */
+    public synchronized MOOSListenerQueue getQueue(MOOSMsgEventListener listener) {
+        return queues.get(listener);
+    }
+
+    /**
+     * @param listener
+     * @return a copy of the variables listener is registered for by name
+     */
+    public synchronized Set<String> getVariables(MOOSMsgEventListener listener) {
+        Set<String> vars = variablesByListener.get(listener);
+        return vars == null ? Collections.<String>emptySet() : new LinkedHashSet<String>(vars);
+    }
+
+    /**
+     * @param listener
+     * @return a copy of the wildcards listener is registered for
+     */
+    public synchronized Set<MOOSWildcard> getPatterns(MOOSMsgEventListener listener) {
+        Set<MOOSWildcard> wildcards = patternsByListener.get(listener);
+        return wildcards == null ? Collections.<MOOSWildcard>emptySet() : new LinkedHashSet<MOOSWildcard>(wildcards);
+    }
+
+    /**
+     * @return a copy of the variables which have listeners by name
+     */
+    public synchronized Set<String> getVariables() {
+        return new LinkedHashSet<String>(exact.keySet());
+    }
+
+    public synchronized void clear() {
+        for (MOOSListenerQueue queue : queues.values()) {
+            queue.close();
+        }
+        exact.clear();
+        patterns.clear();
+        entries.clear();
+        variablesByListener.clear();
+        patternsByListener.clear();
+        queues.clear();
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor where to run the listeners, in parallel, or null (the default) to call them in turn on the dispatching thread
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param queueLength the most messages waiting for each listener when there is an executor
+     */
+    public synchronized void setQueueLength(int queueLength) {
+        this.queueLength = queueLength;
+        for (MOOSListenerQueue queue : queues.values()) {
+            queue.setQueueLength(queueLength);
+        }
+    }
+
+    public synchronized int getQueueLength() {
+        return queueLength;
+    }
+
+    /**
+     * @param overflowPolicy what to do when a listener's queue is full
+     */
+    public synchronized void setOverflowPolicy(MOOSListenerQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        for (MOOSListenerQueue queue : queues.values()) {
+            queue.setOverflowPolicy(overflowPolicy);
+        }
+    }
+
+    public synchronized MOOSListenerQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Hand a batch of mail to the listeners, each listener being called once per variable with that variable's
+     * messages, oldest first. The list a listener is passed is reused for the next batch, so a listener which wants
+     * to keep the messages must copy them. A listener which throws is reported and doesn't stop the others.
+     * With an executor this returns once the mail is queued, without waiting for the listeners.
+     * @param mail messages, oldest first
+     */
+    public void dispatch(Collection<MOOSMsg> mail) {
+        try {
+            for (MOOSMsg msg : mail) {
+                String key = msg.getKey();
+                if (key == null) {
+                    continue;
+                }
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    entry = resolve(key);
+                }
+                if (entry.listeners.length > 0) {
+                    if (entry.pending.isEmpty()) {
+                        touched.add(entry);
+                    }
+                    entry.pending.add(msg);
+                }
+            }
+            Executor e = executor;
+            for (Entry entry : touched) {
+                for (int i = 0; i < entry.listeners.length; i++) {
+                    ArrayList<MOOSMsg> messages = entry.pending;
+                    MOOSWildcard[] filter = entry.filters[i];
+                    double interval = entry.intervals[i];
+                    if (filter != null) {
+                        // the listener only wants this variable from certain apps
+                        filtered.clear();
+                        for (MOOSMsg msg : messages) {
+                            for (MOOSWildcard w : filter) {
+                                if (w.matchesApp(msg.getSource())) {
+                                    filtered.add(msg);
+                                    break;
+                                }
+                            }
+                        }
+                        if (filtered.isEmpty()) {
+                            continue;
+                        }
+                        messages = filtered;
+                    }
+                    if (interval > 0) {
+                        MOOSMsg newest = messages.get(messages.size() - 1);
+                        double[] last = entry.lastDelivered[i];
+                        double since = newest.getTime() - last[0];
+                        if (since >= 0 && since < interval * (1 - DECIMATION_TOLERANCE)) {
+                            entry.listeners[i].decimated(messages.size()); // too soon, this listener sits out the batch
+                            continue;
+                        }
+                        // just the newest, as the MOOSDB would send at this interval
+                        entry.listeners[i].decimated(messages.size() - 1);
+                        filtered.clear();
+                        filtered.add(newest);
+                        messages = filtered;
+                        last[0] = newest.getTime();
+                    }
+                    if (e == null) {
+                        entry.listeners[i].deliver(messages);
+                    } else {
+                        entry.listeners[i].offer(messages, e);
+                    }
+                }
+            }
+        } finally {
+            filtered.clear();
+            for (Entry entry : touched) {
+                entry.pending.clear();
+            }
+            touched.clear();
+        }
+    }
+}
@@ -38,7 +38,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.Set;
 import java.io.Serializable;
 import java.util.Properties;
 
@@ -53,14 +53,24 @@ public class MOOSEventServer extends MOOSCommClient implements Serializable {
 
     public double statusTime;
     public static final double STATUS_PERIOD = 2.0;
+    protected transient MOOSKeyValueBuilder statusBuilder;
     /**
-     * holds information about the map between message varNames and registered listeners
+     * holds information about the map between message varNames and registered listeners. Not serialised, it is
+     * rebuilt from the listener list by initiate()
      */
-    protected TreeMap<String, ArrayList<MOOSMsgEventListener>> msgListenerMap;
+    protected transient MOOSDispatchTable dispatchTable;
+    /**
+     * the mail being dispatched, reused every iterate
+     */
+    protected ArrayList<MOOSMsg> mail = new ArrayList<MOOSMsg>();
+    /**
+     * The MOOSFlowPublisher for each variable or pattern, so its subscribers share one registration
+     */
+    protected transient java.util.concurrent.ConcurrentHashMap<String, MOOSFlowPublisher> flowPublishers;
 
     public MOOSEventServer() {
         super("127.0.0.1", 9000); // defaults
-        msgListenerMap = new TreeMap<String, ArrayList<MOOSMsgEventListener>>();
+        dispatchTable = new MOOSDispatchTable();
         statusTime = MOOSMsg.moosTimeNow();
     }
 
@@ -70,53 +80,11 @@ public class MOOSEventServer extends MOOSCommClient implements Serializable {
     @Override
     public void iterate() throws IOException {
         super.iterate();
-        ArrayList<MOOSMsg> tempInbox;
-        synchronized (this) {
-            tempInbox = new ArrayList<MOOSMsg>(inboxList); // create a clone which won't alter.
-        }
-        TreeMap<String, ArrayList<MOOSMsg>> msgMap = new TreeMap<String, ArrayList<MOOSMsg>>();
-
-        // clear the inbox
-        inboxList.clear();
-
-
-        // sort inbox into individual message lists
-        for (MOOSMsg m : tempInbox) {
-            String varName = m.getKey();
-
-
-            ArrayList<MOOSMsg> msgVarList = msgMap.get(varName);
-            if (msgVarList != null) {
-                // add to list
-                msgVarList.add(m);
-            } else {
-                // create mew list for variable
-                msgVarList = new ArrayList<MOOSMsg>();
-                // add to list
-                msgVarList.add(m);
-                // add to treemap
-                msgMap.put(varName, msgVarList);
-            }
-        }
-
-        // process the correct message lists by the correct listeners
-        for (String key : msgMap.keySet()) {
-            // send message to all receivers
-
-            ArrayList<MOOSMsgEventListener> list = null;
-            synchronized (this) {
-                list = msgListenerMap.get(key);
-            }
-            if (list != null) {
-                ArrayList<MOOSMsg> homogenousMsgs = msgMap.get(key);
-                try {
-                    for (MOOSMsgEventListener c : list) {
-                        c.processMOOSMsg(homogenousMsgs);
-                    }
-                } catch (Exception e) { // we don't want to crash the MOOS thread is a process goes wrong, so we just report it.
-                    e.printStackTrace();
-                }
-            }
+        drainNewMsgs(mail); // take the mail, oldest first, leaving the inbox empty
+        try {
+            dispatchTable.dispatch(mail); // no locks, so listeners can come and go while it runs
+        } finally {
+            mail.clear();
         }
 
         iteratePrivate();
@@ -134,27 +102,87 @@ public class MOOSEventServer extends MOOSCommClient implements Serializable {
     }
 
     protected String makeStatusString() {
+        if (statusBuilder == null) {
+            statusBuilder = new MOOSKeyValueBuilder();
+        }
+        return statusBuilder.clear()
+                .add("AppErrorFlag", false)
+                .add("Uptime", (double) (MOOSMsg.moosTimeNow() - startTime))
+                .add("MOOSName", this.name)
+                .addList("Publishing", this.publishingList)
+                .addList("Subscribing", this.subscribingList.keySet())
+                .toString();
+    }
 
+    /**
+     * @return the table of listeners, which also holds their call statistics (see MOOSDispatchTable.getQueue())
+     */
+    public MOOSDispatchTable getDispatchTable() {
+        return dispatchTable;
+    }
 
-        String pubList = "";
-        String subList = "";
+    /**
+     * Run the listeners on an executor, so that they run in parallel with each other and with the comms, rather
+     * than one after another on the comms thread. Each listener still gets its messages in order.
+     * @param executor e.g. Executors.newFixedThreadPool(), or null (the default) to call listeners from iterate()
+     */
+    public void setDispatchExecutor(java.util.concurrent.Executor executor) {
+        dispatchTable.setExecutor(executor);
+    }
 
+    public java.util.concurrent.Executor getDispatchExecutor() {
+        return dispatchTable.getExecutor();
+    }
 
-        for (String p : this.publishingList) {
-            pubList += p + ",";
-        }
-        for (String p : this.subscribingList.keySet()) {
-            subList += p + ",";
-        }
+    /**
+     * @param queueLength the most messages waiting for each listener when there is a dispatch executor
+     */
+    public void setListenerQueueLength(int queueLength) {
+        dispatchTable.setQueueLength(queueLength);
+    }
 
-        String ssStatus = "AppErrorFlag=" + false + "," + "Uptime=" + (double) ((MOOSMsg.moosTimeNow() - startTime)) + ","
-                + "MOOSName=" + this.name + ","
-                + "Publishing=\"" + pubList + "\","
-                + "Subscribing=\"" + subList + "\"";
+    /**
+     * @param overflowPolicy what to do when a listener falls behind and its queue is full
+     */
+    public void setListenerOverflowPolicy(MOOSListenerQueue.OverflowPolicy overflowPolicy) {
+        dispatchTable.setOverflowPolicy(overflowPolicy);
+    }
 
+    /**
+     * @param varName a variable name or pattern such as NAV_*
+     * @return a stream of every message for varName, subscribers to which are sent only as many as they request
+     */
+    public MOOSFlowPublisher getFlowPublisher(String varName) {
+        return getFlowPublisher(varName, 0);
+    }
 
+    /**
+     * Get the MOOSFlowPublisher for a variable or pattern, creating and registering it the first time. It starts
+     * with the dispatch executor, if there is one, to call its subscribers on.
+     * @param varName a variable name or pattern such as NAV_*
+     * @param interval the least time in seconds between messages for each variable, used only when it is created
+     */
+    public synchronized MOOSFlowPublisher getFlowPublisher(String varName, double interval) {
+        if (flowPublishers == null) {
+            flowPublishers = new java.util.concurrent.ConcurrentHashMap<String, MOOSFlowPublisher>();
+        }
+        MOOSFlowPublisher publisher = flowPublishers.get(varName);
+        if (publisher == null) {
+            publisher = new MOOSFlowPublisher(this, varName, interval);
+            publisher.setExecutor(getDispatchExecutor());
+            flowPublishers.put(varName, publisher);
+            register(publisher);
+        }
+        return publisher;
+    }
 
-        return ssStatus;
+    /**
+     * Called by MOOSFlowPublisher.close()
+     */
+    protected synchronized void removeFlowPublisher(MOOSFlowPublisher publisher) {
+        if (flowPublishers != null && flowPublishers.remove(publisher.getVariable(), publisher)) {
+            unRegister(publisher);
+        }
     }
 
     public boolean registerLists(Iterator<String> varNames, Iterator<Double> intervals) {
@@ -210,6 +238,7 @@ public class MOOSEventServer extends MOOSCommClient implements Serializable {
                     result &= this.register(listener);
                 }
             }
+            sendWildcardRegistrationPackets(); // including those made with register(listener, varPattern, appPattern, interval)
 
         //    if (!result) {
         //        System.out.println("MOOSEventServer: failed to register lists of variables after Handshake!");
@@ -219,40 +248,24 @@ public class MOOSEventServer extends MOOSCommClient implements Serializable {
     }
 
     public synchronized boolean unRegister(MOOSMsgEventListener client) {
-        // remove from treemap
         boolean success = true;
-
-        // this way we know we got rid of all old vars from that client, just in case they changed. A bit slow but shouldn't happen too often.
-        ArrayList<String> registeredVars = new ArrayList<String>();
-
-        for (String var : msgListenerMap.keySet()) {
-            for (MOOSMsgEventListener theClient : msgListenerMap.get(var)) {
-                if (theClient == client) {
-                    if (!super.unRegister(var)) {
-                        success = false;
-                    }
-                    msgListenerMap.get(var).remove(client);
-                    if (msgListenerMap.get(var).isEmpty()) {
-                        msgListenerMap.remove(var);
-                    }
-                    break;
-                }
+        // the table knows which variables the client was registered for, even if getVariableNames() has changed since.
+        // Variables other listeners still want stay registered with the MOOSDB.
+        Set<MOOSWildcard> wildcards = dispatchTable.getPatterns(client);
+        for (String var : dispatchTable.remove(client)) {
+            if (dispatchTable.hasListeners(var)) {
+                register(var, dispatchTable.getMinInterval(var)); // the listeners left may be happy with a slower rate
+            } else if (!super.unRegister(var)) {
+                success = false;
             }
         }
-
-        /*
-        for (String var : client.getVariableNames()) {
-        if (msgListenerMap.containsKey(var)) {
-        msgListenerMap.get(var).remove(client);
-        if (msgListenerMap.get(var).isEmpty()) {
-        msgListenerMap.remove(var);
-        }
-        }
-        if (!super.unRegister(var)) {
-        success = false;
-        }
+        for (MOOSWildcard w : wildcards) {
+            if (dispatchTable.hasListeners(w)) {
+                register(w.getVarPattern(), w.getAppPattern(), dispatchTable.getMinInterval(w));
+            } else if (!super.unRegister(w.getVarPattern(), w.getAppPattern())) {
+                success = false;
+            }
         }
-         */
         return success;
 
     }
@@ -260,19 +273,47 @@ public class MOOSEventServer extends MOOSCommClient implements Serializable {
     public synchronized boolean register(MOOSMsgEventListener client) {
         // Here gather information from the requesting client about what message types etc it is interested in receiving.
 
-        //build a tree map for associating listeners with MOOS Message variables
+        //build the table associating listeners with MOOS Message variables. Names such as NAV_* are wildcards.
+        ArrayList<String> vars = new ArrayList<String>();
+        ArrayList<Double> dbIntervals = new ArrayList<Double>();
+        Iterator<Double> intervals = client.getRequiredMsgIntervals().iterator();
+        boolean missingInterval = false;
         for (String var : client.getVariableNames()) {
-            if (msgListenerMap.containsKey(var) && !msgListenerMap.get(var).contains(client)) {
-                msgListenerMap.get(var).add(client);
-            } else if (!msgListenerMap.containsKey(var)) {
-                ArrayList<MOOSMsgEventListener> l = new ArrayList<MOOSMsgEventListener>();
-                l.add(client);
-                msgListenerMap.put(var, l);
+            missingInterval |= !intervals.hasNext();
+            double interval = intervals.hasNext() ? intervals.next() : 0;
+            vars.add(var);
+            // the MOOSDB sends us each variable at the fastest rate any listener wants, the table decimates it for the rest
+            if (MOOSWildcard.isPattern(var)) {
+                MOOSWildcard wildcard = new MOOSWildcard(var, MOOSWildcard.ANY);
+                dispatchTable.add(wildcard, client, interval);
+                dbIntervals.add(dispatchTable.getMinInterval(wildcard));
+            } else {
+                dispatchTable.add(var, client, interval);
+                dbIntervals.add(dispatchTable.getMinInterval(var));
             }
         }
 
+        if (missingInterval) {
+            // let registerLists() report the listener's mistake
+            return this.registerLists(client.getVariableNames().iterator(), client.getRequiredMsgIntervals().iterator());
+        }
+        return this.registerLists(vars.iterator(), dbIntervals.iterator());
+    }
 
-        return this.registerLists(client.getVariableNames().iterator(), client.getRequiredMsgIntervals().iterator());
+    /**
+     * Send a listener every variable matching varPattern from an app matching appPattern, as well as those it asks
+     * for in getVariableNames(). See MOOSCommClient.register(String, String, double).
+     * The listener is called at most once every interval seconds for each variable.
+     * @param client
+     * @param varPattern e.g. NAV_*
+     * @param appPattern e.g. pNav, or * for any app
+     * @param interval
+     * @return false if the registration couldn't be sent to the MOOSDB
+     */
+    public synchronized boolean register(MOOSMsgEventListener client, String varPattern, String appPattern, double interval) {
+        MOOSWildcard wildcard = new MOOSWildcard(varPattern, appPattern);
+        dispatchTable.add(wildcard, client, interval);
+        return register(varPattern, appPattern, dispatchTable.getMinInterval(wildcard));
     }
     ////////////////////////////////////////////////////////////////////////
     // Event Listener stuff for registering the MOOSMsgEventListener etc
@@ -319,6 +360,9 @@ public class MOOSEventServer extends MOOSCommClient implements Serializable {
      * Called if the bean has been serialized from disk
      */
     public void initiate() {
+        if (this.dispatchTable == null) {
+            this.dispatchTable = new MOOSDispatchTable();
+        }
         if (this.mOOSMsgEventListenerList != null) {
             for (Object client : this.mOOSMsgEventListenerList) {
                 this.register((MOOSMsgEventListener) client);
@@ -0,0 +1,89 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+/**
+ * Reactive stream interfaces, the same as java.util.concurrent.Flow (Java 9) and the Reactive Streams ones they
+ * came from, method for method, so that MOOSFlowPublisher can be used on Java 7 and Android today and adapted to a
+ * Flow.Publisher by a one line wrapper where Flow exists.
+ *
+ * A Subscriber says how many items it is ready for with Subscription.request(), and the Publisher never sends it
+ * more than that, so a slow consumer sets the pace instead of being buried.
+ */
+public final class MOOSFlow {
+
+    private MOOSFlow() {
+    }
+
+    /**
+     * A source of items for any number of Subscribers.
+     */
+    public interface Publisher<T> {
+
+        /**
+         * @param subscriber is sent onSubscribe(), then up to as many onNext() as it requests, then onComplete() or onError()
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A consumer of items. The methods are never called concurrently for one subscription.
+     */
+    public interface Subscriber<T> {
+
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(T item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    /**
+     * The link between one Publisher and one Subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * @param n how many more items the subscriber is ready for, added to what it asked for before. Must be positive.
+         */
+        public void request(long n);
+
+        /**
+         * Stop sending items. Some already on their way may still arrive.
+         */
+        public void cancel();
+    }
+}
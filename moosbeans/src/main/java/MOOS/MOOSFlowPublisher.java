@@ -0,0 +1,347 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stream of the messages for one variable, or for every variable matching a pattern such as NAV_*, which any
+ * number of MOOSFlow.Subscribers can subscribe to. Get one from MOOSEventServer.getFlowPublisher().
+ *
+ * Each subscription holds the messages its subscriber hasn't asked for yet in a buffer of bufferSize messages,
+ * throwing away the oldest when it is full (counted by getDroppedCount()), so a slow subscriber costs a fixed
+ * amount of memory and never holds up the comms or the other subscribers. With conflation on, the buffer instead
+ * keeps just the newest message for each variable, which is what a display of current values wants.
+ *
+ * Messages go to each subscriber on the executor, one at a time and in order, or on the MOOSEventServer's thread
+ * if there is no executor.
+ */
+public class MOOSFlowPublisher implements MOOSFlow.Publisher<MOOSMsg>, MOOSMsgEventListener {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+    protected final MOOSEventServer server;
+    protected final String variable;
+    protected final double interval;
+    protected final CopyOnWriteArrayList<Sub> subscriptions = new CopyOnWriteArrayList<Sub>();
+    protected volatile Executor executor;
+    protected volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    protected volatile boolean conflate;
+    protected volatile boolean closed;
+
+    /**
+     * @param server where the messages come from
+     * @param variable a variable name or pattern
+     * @param interval the least time in seconds between messages for each variable, 0 for every message
+     */
+    public MOOSFlowPublisher(MOOSEventServer server, String variable, double interval) {
+        this.server = server;
+        this.variable = variable;
+        this.interval = interval;
+    }
+
+    @Override
+    public void subscribe(MOOSFlow.Subscriber<? super MOOSMsg> subscriber) {
+        Sub sub = new Sub(subscriber, bufferSize, conflate);
+        subscriptions.add(sub);
+        try {
+            subscriber.onSubscribe(sub);
+        } catch (Exception e) {
+            System.out.println("CAUGHT EXCEPTION: ");
+            e.printStackTrace();
+            sub.cancel();
+            return;
+        }
+        if (closed) {
+            sub.complete();
+        }
+    }
+
+    /**
+     * Called by the MOOSEventServer with new mail, which is buffered for each subscriber.
+     * @param messages
+     */
+    @Override
+    public void processMOOSMsg(Iterable<MOOSMsg> messages) {
+        for (Sub sub : subscriptions) {
+            sub.offer(messages);
+        }
+    }
+
+    @Override
+    public Iterable<String> getVariableNames() {
+        return Collections.singletonList(variable);
+    }
+
+    @Override
+    public Iterable<Double> getRequiredMsgIntervals() {
+        return Collections.singletonList(interval);
+    }
+
+    /**
+     * Stop listening to the MOOSEventServer, completing every subscription once its subscriber has had what is buffered.
+     */
+    public void close() {
+        closed = true;
+        server.removeFlowPublisher(this);
+        for (Sub sub : subscriptions) {
+            sub.complete();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public String getVariable() {
+        return variable;
+    }
+
+    /**
+     * @return the number of subscriptions which haven't been cancelled or completed
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return messages thrown away, across every subscription, because a subscriber fell too far behind
+     */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Sub sub : subscriptions) {
+            dropped += sub.dropped.get();
+        }
+        return dropped;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor where to call subscribers, or null for the MOOSEventServer's thread
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the most messages held for each subscriber, for subscriptions made from now on
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(1, bufferSize);
+    }
+
+    public boolean isConflate() {
+        return conflate;
+    }
+
+    /**
+     * @param conflate whether to hold only the newest message of each variable for a subscriber, for subscriptions made from now on
+     */
+    public void setConflate(boolean conflate) {
+        this.conflate = conflate;
+    }
+
+    /**
+     * One subscriber's subscription. Whoever changes the buffer or the demand calls schedule(), and run() sends what
+     * the demand allows; a counter of calls makes sure only one run() goes at a time and none is missed.
+     */
+    protected class Sub implements MOOSFlow.Subscription, Runnable {
+
+        protected final MOOSFlow.Subscriber<? super MOOSMsg> subscriber;
+        protected final int bufferSize;
+        protected final ArrayDeque<MOOSMsg> queue; // or
+        protected final LinkedHashMap<String, MOOSMsg> latest; // when conflating
+        protected final AtomicLong requested = new AtomicLong();
+        protected final AtomicInteger wip = new AtomicInteger();
+        protected final AtomicLong dropped = new AtomicLong();
+        protected volatile boolean cancelled;
+        protected volatile boolean done;
+        protected volatile Throwable error;
+
+        protected Sub(MOOSFlow.Subscriber<? super MOOSMsg> subscriber, int bufferSize, boolean conflate) {
+            this.subscriber = subscriber;
+            this.bufferSize = bufferSize;
+            this.queue = conflate ? null : new ArrayDeque<MOOSMsg>();
+            this.latest = conflate ? new LinkedHashMap<String, MOOSMsg>() : null;
+        }
+
+        protected void offer(Iterable<MOOSMsg> messages) {
+            if (cancelled || done) {
+                return;
+            }
+            synchronized (this) {
+                for (MOOSMsg msg : messages) {
+                    if (latest != null) {
+                        latest.remove(msg.getKey()); // so it goes to the back
+                        latest.put(msg.getKey(), msg);
+                        if (latest.size() > bufferSize) {
+                            Iterator<MOOSMsg> oldest = latest.values().iterator();
+                            oldest.next();
+                            oldest.remove();
+                            dropped.incrementAndGet();
+                        }
+                    } else {
+                        queue.add(msg);
+                        if (queue.size() > bufferSize) {
+                            queue.poll();
+                            dropped.incrementAndGet();
+                        }
+                    }
+                }
+            }
+            schedule();
+        }
+
+        protected synchronized MOOSMsg poll() {
+            if (latest != null) {
+                if (latest.isEmpty()) {
+                    return null;
+                }
+                Iterator<MOOSMsg> oldest = latest.values().iterator();
+                MOOSMsg msg = oldest.next();
+                oldest.remove();
+                return msg;
+            }
+            return queue.poll();
+        }
+
+        protected synchronized boolean isEmpty() {
+            return latest != null ? latest.isEmpty() : queue.isEmpty();
+        }
+
+        protected synchronized void clear() {
+            if (latest != null) {
+                latest.clear();
+            } else {
+                queue.clear();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request(" + n + "): must ask for at least one message");
+            } else {
+                long r, next;
+                do {
+                    r = requested.get();
+                    next = r + n < 0 ? Long.MAX_VALUE : r + n; // unbounded, near enough
+                } while (!requested.compareAndSet(r, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            schedule(); // let run() clear the buffer
+        }
+
+        protected void complete() {
+            done = true;
+            schedule();
+        }
+
+        protected void schedule() {
+            if (wip.getAndIncrement() != 0) {
+                return; // run() is going and will see the change
+            }
+            Executor e = executor;
+            if (e == null) {
+                run();
+                return;
+            }
+            try {
+                e.execute(this);
+            } catch (RejectedExecutionException ex) {
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                long r = requested.get();
+                long sent = 0;
+                while (sent != r && !cancelled && error == null) {
+                    MOOSMsg msg = poll();
+                    if (msg == null) {
+                        break;
+                    }
+                    try {
+                        subscriber.onNext(msg);
+                    } catch (Exception e) { // a subscriber mustn't throw, we treat it as a cancel
+                        System.out.println("CAUGHT EXCEPTION: ");
+                        e.printStackTrace();
+                        cancel();
+                    }
+                    sent++;
+                }
+                if (sent > 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-sent);
+                }
+                if (cancelled) {
+                    clear();
+                } else if (error != null) {
+                    cancel();
+                    subscriber.onError(error);
+                } else if (done && isEmpty()) {
+                    cancelled = true;
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
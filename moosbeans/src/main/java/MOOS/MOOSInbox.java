@@ -0,0 +1,304 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The inbox of a MOOSCommClient: a ring buffer of received mail in the order it arrived, oldest first.
+ * Appending is O(1) and the inbox is bounded both by the number of messages and by their total size in bytes.
+ * When either limit is exceeded the oldest mail is dropped (and counted) rather than the whole inbox being thrown away.
+ * The I/O thread add()s while the application drainTo()s, so every method is synchronized, but none holds the lock for more than a copy.
+ * Each message is stamped with its arrival from a clock, which inboxes can share so their mail can be merged in the order it arrived.
+ */
+public class MOOSInbox<T> {
+
+    public static final int DEFAULT_MAX_MESSAGES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    protected static final int INITIAL_LENGTH = 16;
+    protected Object[] ring;
+    protected int[] sizes;
+    protected long[] arrivals;
+    protected final AtomicLong clock;
+    protected int head; // index of the oldest message
+    protected int count;
+    protected long bytes;
+    protected int maxMessages;
+    protected long maxBytes;
+    // statistics
+    protected long droppedCount;
+
+    public MOOSInbox() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxMessages the most messages held before the oldest are dropped
+     * @param maxBytes the most payload bytes held before the oldest are dropped
+     */
+    public MOOSInbox(int maxMessages, long maxBytes) {
+        this(maxMessages, maxBytes, new AtomicLong());
+    }
+
+    /**
+     * @param maxMessages the most messages held before the oldest are dropped
+     * @param maxBytes the most payload bytes held before the oldest are dropped
+     * @param clock stamps each message's arrival, shared with any inbox this one's mail is merged with
+     */
+    public MOOSInbox(int maxMessages, long maxBytes, AtomicLong clock) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = maxBytes;
+        this.clock = clock;
+        ring = new Object[Math.min(INITIAL_LENGTH, this.maxMessages)];
+        sizes = new int[ring.length];
+        arrivals = new long[ring.length];
+    }
+
+    /**
+     * Append a message as the newest, dropping the oldest if that takes us over either limit.
+     * @param item
+     * @param size its size in bytes, counted against the byte limit
+     * @return the number of older messages dropped to make room
+     */
+    public int add(T item, int size) {
+        return add(item, size, clock.incrementAndGet());
+    }
+
+    /**
+     * Append a message which arrived earlier, e.g. one being moved from another inbox with the same clock. Messages
+     * must still be added oldest first.
+     * @param item
+     * @param size its size in bytes
+     * @param arrival its stamp from the clock
+     * @return the number of older messages dropped to make room
+     */
+    public synchronized int add(T item, int size, long arrival) {
+        int dropped = 0;
+        while (count > 0 && (count >= maxMessages || bytes + size > maxBytes)) {
+            removeOldest();
+            dropped++;
+        }
+        if (count == ring.length) {
+            grow();
+        }
+        int tail = (head + count) % ring.length;
+        ring[tail] = item;
+        sizes[tail] = size;
+        arrivals[tail] = arrival;
+        count++;
+        bytes += size;
+        droppedCount += dropped;
+        return dropped;
+    }
+
+    /**
+     * Hand every message over, oldest first, leaving the inbox empty. No copy of the inbox is made.
+     * @param mail where to put them
+     * @return the number of messages moved
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized int drainTo(Collection<? super T> mail) {
+        int n = count;
+        for (int i = 0; i < n; i++) {
+            int index = (head + i) % ring.length;
+            mail.add((T) ring[index]);
+            ring[index] = null;
+        }
+        head = 0;
+        count = 0;
+        bytes = 0;
+        return n;
+    }
+
+    /**
+     * Take the oldest message out of the inbox.
+     * @return it, or null if the inbox is empty
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T poll() {
+        if (count == 0) {
+            return null;
+        }
+        T item = (T) ring[head];
+        removeOldest();
+        return item;
+    }
+
+    /**
+     * @return the arrival stamp of the oldest message, Long.MAX_VALUE if the inbox is empty
+     */
+    public synchronized long getOldestArrival() {
+        return count == 0 ? Long.MAX_VALUE : arrivals[head];
+    }
+
+    /**
+     * @return the size in bytes the oldest message was added with, 0 if the inbox is empty
+     */
+    public synchronized int getOldestSize() {
+        return count == 0 ? 0 : sizes[head];
+    }
+
+    /**
+     * Copy the messages, oldest first, without taking them out of the inbox.
+     * @param mail
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void peekAll(Collection<? super T> mail) {
+        for (int i = 0; i < count; i++) {
+            mail.add((T) ring[(head + i) % ring.length]);
+        }
+    }
+
+    /**
+     * Take one message out of the inbox, wherever it is. O(n), so only for the odd message such as the welcome during the handshake.
+     * @param item
+     * @return false if it wasn't in the inbox
+     */
+    public synchronized boolean remove(T item) {
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % ring.length;
+            if (ring[index] == item) {
+                bytes -= sizes[index];
+                // close the gap by shuffling the newer messages back one place
+                for (int j = i; j < count - 1; j++) {
+                    int to = (head + j) % ring.length;
+                    int from = (to + 1) % ring.length;
+                    ring[to] = ring[from];
+                    sizes[to] = sizes[from];
+                    arrivals[to] = arrivals[from];
+                }
+                ring[(head + count - 1) % ring.length] = null;
+                count--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        while (count > 0) {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+        }
+        head = 0;
+        bytes = 0;
+    }
+
+    protected void removeOldest() {
+        bytes -= sizes[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+    }
+
+    protected void grow() {
+        int length = (int) Math.min((long) ring.length * 2, maxMessages);
+        Object[] newRing = new Object[Math.max(length, count + 1)];
+        int[] newSizes = new int[newRing.length];
+        long[] newArrivals = new long[newRing.length];
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % ring.length;
+            newRing[i] = ring[index];
+            newSizes[i] = sizes[index];
+            newArrivals[i] = arrivals[index];
+        }
+        ring = newRing;
+        sizes = newSizes;
+        arrivals = newArrivals;
+        head = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the number of messages waiting
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return the total size in bytes of the messages waiting
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the most messages held before the oldest are dropped
+     */
+    public synchronized int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * @param maxMessages the most messages held before the oldest are dropped
+     */
+    public synchronized void setMaxMessages(int maxMessages) {
+        this.maxMessages = Math.max(1, maxMessages);
+        while (count > this.maxMessages) {
+            removeOldest();
+            droppedCount++;
+        }
+    }
+
+    /**
+     * @return the most payload bytes held before the oldest are dropped
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes the most payload bytes held before the oldest are dropped
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        while (count > 1 && bytes > maxBytes) {
+            removeOldest();
+            droppedCount++;
+        }
+    }
+
+    /**
+     * @return the number of messages dropped because the inbox was full
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,115 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+/**
+ * Builds the comma separated name=value strings which MOOSKeyValueParser reads. Reuse one builder by calling
+ * clear() before each string. Values containing a comma are quoted.
+ *
+ * builder.clear().add("NAME", name).add("X", x).add("Y", y);
+ * client.notify("NODE_REPORT_LOCAL", builder.toString(), -1);
+ */
+public class MOOSKeyValueBuilder {
+
+    protected StringBuilder sb = new StringBuilder(256);
+
+    /**
+     * Start a new string.
+     * @return this
+     */
+    public MOOSKeyValueBuilder clear() {
+        sb.setLength(0);
+        return this;
+    }
+
+    protected StringBuilder field(String name) {
+        if (sb.length() > 0) {
+            sb.append(',');
+        }
+        return sb.append(name).append('=');
+    }
+
+    public MOOSKeyValueBuilder add(String name, double value) {
+        field(name).append(value);
+        return this;
+    }
+
+    public MOOSKeyValueBuilder add(String name, long value) {
+        field(name).append(value);
+        return this;
+    }
+
+    public MOOSKeyValueBuilder add(String name, boolean value) {
+        field(name).append(value);
+        return this;
+    }
+
+    /**
+     * @param name
+     * @param value quoted if it contains a comma
+     * @return this
+     */
+    public MOOSKeyValueBuilder add(String name, String value) {
+        if (value != null && value.indexOf(',') >= 0) {
+            field(name).append('"').append(value).append('"');
+        } else {
+            field(name).append(value);
+        }
+        return this;
+    }
+
+    /**
+     * Add a quoted list, e.g. Publishing="A,B,".
+     * @param name
+     * @param values each followed by a comma, as MOOS status strings are
+     * @return this
+     */
+    public MOOSKeyValueBuilder addList(String name, Iterable<String> values) {
+        field(name).append('"');
+        for (String value : values) {
+            sb.append(value).append(',');
+        }
+        sb.append('"');
+        return this;
+    }
+
+    public int length() {
+        return sb.length();
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
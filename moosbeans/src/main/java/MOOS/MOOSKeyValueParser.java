@@ -0,0 +1,373 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reads the comma separated name=value strings which many MOOS variables carry (NODE_REPORT, appcasts, the
+ * status string of MOOSEventServer) without splitting them up. parse() just records where each field starts and
+ * ends, and getDouble(), getString() etc. read the field they are asked for straight out of the string, so
+ * numbers are parsed without making substrings. Values may be quoted to contain commas, e.g. Publishing="A,B".
+ *
+ * One parser is meant to be reused for message after message. Because the fields of a given variable usually come
+ * in the same order every time, it remembers where it last found each field name and looks there first.
+ *
+ * MOOSKeyValueParser parser = new MOOSKeyValueParser();
+ * parser.parse(msg);
+ * double x = parser.getDouble("X");
+ *
+ * Not thread safe, use one per thread.
+ */
+public class MOOSKeyValueParser {
+
+    protected static final int INITIAL_FIELDS = 16;
+    protected static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    protected String source = "";
+    protected int count;
+    // where each field's name and value start and end in source, ends exclusive, quotes excluded
+    protected int[] nameStart = new int[INITIAL_FIELDS];
+    protected int[] nameEnd = new int[INITIAL_FIELDS];
+    protected int[] valueStart = new int[INITIAL_FIELDS];
+    protected int[] valueEnd = new int[INITIAL_FIELDS];
+    protected HashMap<String, Integer> lastIndex = new HashMap<String, Integer>();
+    protected boolean ignoreCase;
+
+    /**
+     * @param msg a string message
+     * @return this, for reading its fields
+     */
+    public MOOSKeyValueParser parse(MOOSMsg msg) {
+        return parse(msg.getStringData());
+    }
+
+    /**
+     * @param s a string of name=value pairs separated by commas
+     * @return this, for reading its fields
+     */
+    public MOOSKeyValueParser parse(String s) {
+        source = s == null ? "" : s;
+        count = 0;
+        int length = source.length();
+        int i = 0;
+        while (i < length) {
+            // name, up to '=' or ','
+            int start = i;
+            while (i < length && source.charAt(i) != '=' && source.charAt(i) != ',') {
+                i++;
+            }
+            int end = i;
+            int vStart = i;
+            int vEnd = i;
+            if (i < length && source.charAt(i) == '=') {
+                i++;
+                while (i < length && source.charAt(i) == ' ') {
+                    i++;
+                }
+                if (i < length && source.charAt(i) == '"') {
+                    vStart = ++i;
+                    while (i < length && source.charAt(i) != '"') {
+                        i++;
+                    }
+                    vEnd = i;
+                    while (i < length && source.charAt(i) != ',') { // skip the closing quote and anything after it
+                        i++;
+                    }
+                } else {
+                    vStart = i;
+                    while (i < length && source.charAt(i) != ',') {
+                        i++;
+                    }
+                    vEnd = i;
+                }
+            }
+            i++; // the comma
+            // trim spaces
+            while (start < end && source.charAt(start) == ' ') {
+                start++;
+            }
+            while (end > start && source.charAt(end - 1) == ' ') {
+                end--;
+            }
+            while (vEnd > vStart && source.charAt(vEnd - 1) == ' ') {
+                vEnd--;
+            }
+            if (end > start) {
+                addField(start, end, vStart, vEnd);
+            }
+        }
+        return this;
+    }
+
+    protected void addField(int start, int end, int vStart, int vEnd) {
+        if (count == nameStart.length) {
+            int length = 2 * count;
+            nameStart = Arrays.copyOf(nameStart, length);
+            nameEnd = Arrays.copyOf(nameEnd, length);
+            valueStart = Arrays.copyOf(valueStart, length);
+            valueEnd = Arrays.copyOf(valueEnd, length);
+        }
+        nameStart[count] = start;
+        nameEnd[count] = end;
+        valueStart[count] = vStart;
+        valueEnd[count] = vEnd;
+        count++;
+    }
+
+    /**
+     * @return the number of fields in the string parsed
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param field
+     * @return the index of the named field, or -1 if there isn't one
+     */
+    public int indexOf(String field) {
+        Integer last = lastIndex.get(field);
+        if (last != null && last < count && nameEquals(last, field)) {
+            return last;
+        }
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, field)) {
+                lastIndex.put(field, i);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected boolean nameEquals(int index, String field) {
+        int length = nameEnd[index] - nameStart[index];
+        return length == field.length() && source.regionMatches(ignoreCase, nameStart[index], field, 0, length);
+    }
+
+    /**
+     * @param field
+     * @return whether the string has the named field
+     */
+    public boolean has(String field) {
+        return indexOf(field) >= 0;
+    }
+
+    /**
+     * @param index
+     * @return the name of a field
+     */
+    public String getName(int index) {
+        return source.substring(nameStart[index], nameEnd[index]);
+    }
+
+    /**
+     * @param index
+     * @return the value of a field, without quotes
+     */
+    public String getString(int index) {
+        return source.substring(valueStart[index], valueEnd[index]);
+    }
+
+    /**
+     * @param field
+     * @return the value of the named field, or null if there isn't one
+     */
+    public String getString(String field) {
+        int index = indexOf(field);
+        return index < 0 ? null : getString(index);
+    }
+
+    /**
+     * @param field
+     * @return the named field as a number, NaN if it is missing or not a number
+     */
+    public double getDouble(String field) {
+        return getDouble(field, Double.NaN);
+    }
+
+    /**
+     * @param field
+     * @param defaultValue
+     * @return the named field as a number, or defaultValue if it is missing or not a number
+     */
+    public double getDouble(String field, double defaultValue) {
+        int index = indexOf(field);
+        return index < 0 ? defaultValue : getDouble(index, defaultValue);
+    }
+
+    /**
+     * Parse a value as a double in place. Plain decimals of up to 15 significant digits (which covers anything
+     * printed by MOOS apps) are converted exactly without allocating, anything else goes to Double.parseDouble().
+     * @param index
+     * @param defaultValue returned if the value isn't a number
+     * @return the value
+     */
+    public double getDouble(int index, double defaultValue) {
+        int i = valueStart[index];
+        int end = valueEnd[index];
+        if (i == end) {
+            return defaultValue;
+        }
+        boolean negative = false;
+        char c = source.charAt(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        for (; i < end && (c = source.charAt(i)) >= '0' && c <= '9'; i++) {
+            any = true;
+            if (digits > 0 || c != '0') {
+                mantissa = 10 * mantissa + (c - '0');
+                digits++;
+            }
+        }
+        if (i < end && source.charAt(i) == '.') {
+            for (i++; i < end && (c = source.charAt(i)) >= '0' && c <= '9'; i++) {
+                any = true;
+                if (digits > 0 || c != '0') {
+                    mantissa = 10 * mantissa + (c - '0');
+                    digits++;
+                }
+                exponent--;
+            }
+        }
+        if (i < end && (source.charAt(i) == 'e' || source.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (source.charAt(i) == '-' || source.charAt(i) == '+')) {
+                negativeExponent = source.charAt(i) == '-';
+                i++;
+            }
+            int e = 0;
+            boolean anyExponent = false;
+            for (; i < end && (c = source.charAt(i)) >= '0' && c <= '9' && e < 10000; i++) {
+                e = 10 * e + (c - '0');
+                anyExponent = true;
+            }
+            any &= anyExponent;
+            exponent += negativeExponent ? -e : e;
+        }
+        if (any && i == end && digits <= 15 && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            // both the mantissa and the power of ten are exact doubles, so one multiply or divide rounds correctly
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(source.substring(valueStart[index], valueEnd[index]));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param field
+     * @param defaultValue
+     * @return the named field as a whole number, or defaultValue if it is missing or not a whole number
+     */
+    public long getLong(String field, long defaultValue) {
+        int index = indexOf(field);
+        if (index < 0 || valueStart[index] == valueEnd[index]) {
+            return defaultValue;
+        }
+        int i = valueStart[index];
+        int end = valueEnd[index];
+        boolean negative = source.charAt(i) == '-';
+        if (negative || source.charAt(i) == '+') {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = source.charAt(i);
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            value = 10 * value + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param field
+     * @param defaultValue
+     * @return whether the named field is "true", or defaultValue if it is missing or neither "true" nor "false". Case is ignored.
+     */
+    public boolean getBoolean(String field, boolean defaultValue) {
+        int index = indexOf(field);
+        if (index < 0) {
+            return defaultValue;
+        }
+        int length = valueEnd[index] - valueStart[index];
+        if (length == 4 && source.regionMatches(true, valueStart[index], "true", 0, 4)) {
+            return true;
+        } else if (length == 5 && source.regionMatches(true, valueStart[index], "false", 0, 5)) {
+            return false;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param field
+     * @param value
+     * @return whether the named field has the given value, compared in place
+     */
+    public boolean valueEquals(String field, String value) {
+        int index = indexOf(field);
+        if (index < 0) {
+            return false;
+        }
+        int length = valueEnd[index] - valueStart[index];
+        return length == value.length() && source.regionMatches(ignoreCase, valueStart[index], value, 0, length);
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * @param ignoreCase whether field names (and valueEquals()) ignore case, as MOOSValFromString() does in C++ MOOS. Off by default.
+     */
+    public void setIgnoreCase(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+    }
+}
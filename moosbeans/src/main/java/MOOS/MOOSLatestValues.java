@@ -0,0 +1,373 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The newest value of every variable a MOOSCommClient has received, kept up to date as mail arrives, so an app
+ * which only wants "the current NAV_X" can ask for it instead of searching its mail or keeping its own map.
+ *
+ * Each variable has a Value, created the first time it is asked for or received and kept from then on, so an app
+ * can look one up once and read it every iterate without even a hash lookup:
+ *
+ * MOOSLatestValues.Value navX = client.getLatestValues().get("NAV_X");
+ * ...
+ * double x = navX.getDouble();
+ *
+ * A whole packet of mail is written in one go, under a sequence lock: the sequence number is odd while the values
+ * are changing and goes up again when they are done, so snapshot() can read several Values, check the sequence
+ * didn't move, and know it has a consistent set (say NAV_X and NAV_Y from the same packet) without the receive
+ * thread ever waiting for a reader. Reading a single Value needs no lock at all.
+ *
+ * Binary values aren't copied: a Value points into the receive buffer its payload arrived in and holds on to that
+ * buffer until the next value replaces it, so keeping the latest binary doesn't undo the zero copy receive path.
+ */
+public class MOOSLatestValues {
+
+    /**
+     * The newest value of one variable.
+     */
+    public static class Value {
+
+        protected final String key;
+        protected volatile char dataType = MOOSMsg.MOOS_NOT_SET;
+        protected volatile double doubleData = Double.NaN;
+        protected volatile String stringData;
+        protected volatile ByteBuffer binaryBuffer; // read only
+        protected MOOSSharedBuffer binaryOwner; // what binaryBuffer points into, if shared; only the writer touches it
+        protected volatile double time = -1;
+        protected volatile String source;
+        protected volatile long updateCount;
+
+        protected Value(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the value, NaN if it isn't a double or nothing has been received
+         */
+        public double getDouble() {
+            return doubleData;
+        }
+
+        /**
+         * @return the value, null if it isn't a string or nothing has been received
+         */
+        public String getString() {
+            return stringData;
+        }
+
+        /**
+         * @return a copy of the value, null if it isn't binary or nothing has been received
+         */
+        public byte[] getBinaryData() {
+            while (true) {
+                ByteBuffer payload = binaryBuffer;
+                if (payload == null) {
+                    return null;
+                }
+                byte[] copy = new byte[payload.remaining()];
+                payload.duplicate().get(copy);
+                if (binaryBuffer == payload) {
+                    return copy; // still held, so the copy wasn't overwritten
+                }
+            }
+        }
+
+        /**
+         * @return a read only buffer over the value, without copying it, null if it isn't binary or nothing has
+         * been received. It may point into a receive buffer, which is let go when a new value arrives, so read it
+         * promptly and check getUpdateCount() hasn't moved, or use getBinaryData().
+         */
+        public ByteBuffer getBinaryBuffer() {
+            ByteBuffer payload = binaryBuffer;
+            return payload == null ? null : payload.duplicate();
+        }
+
+        /**
+         * @return MOOS_DOUBLE, MOOS_STRING, MOOS_BINARY_STRING, or MOOS_NOT_SET if nothing has been received
+         */
+        public char getDataType() {
+            return dataType;
+        }
+
+        /**
+         * @return the time the value was published, -1 if nothing has been received
+         */
+        public double getTime() {
+            return time;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return the number of messages received for the variable, handy for noticing a new value
+         */
+        public long getUpdateCount() {
+            return updateCount;
+        }
+
+        public boolean hasValue() {
+            return updateCount > 0;
+        }
+    }
+    protected final ConcurrentHashMap<String, Value> values = new ConcurrentHashMap<String, Value>();
+    protected volatile long sequence; // odd while an update is being written
+    protected final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * @param key
+     * @return the Value for key, which is kept up to date from now on. Never null.
+     */
+    public Value get(String key) {
+        Value value = values.get(key);
+        if (value == null) {
+            Value made = new Value(key);
+            value = values.putIfAbsent(key, made);
+            if (value == null) {
+                value = made;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param key
+     * @return whether anything has been received for key
+     */
+    public boolean has(String key) {
+        Value value = values.get(key);
+        return value != null && value.hasValue();
+    }
+
+    /**
+     * @param key
+     * @return the newest value, NaN if there is none or it isn't a double
+     */
+    public double getDouble(String key) {
+        Value value = values.get(key);
+        return value == null ? Double.NaN : value.doubleData;
+    }
+
+    /**
+     * @param key
+     * @param defaultValue
+     * @return the newest value, or defaultValue if there is none or it isn't a double
+     */
+    public double getDouble(String key, double defaultValue) {
+        Value value = values.get(key);
+        return value == null || value.dataType != MOOSMsg.MOOS_DOUBLE ? defaultValue : value.doubleData;
+    }
+
+    /**
+     * @param key
+     * @return the newest value, null if there is none or it isn't a string
+     */
+    public String getString(String key) {
+        Value value = values.get(key);
+        return value == null ? null : value.stringData;
+    }
+
+    /**
+     * @param key
+     * @return when the newest value was published, -1 if there is none
+     */
+    public double getTime(String key) {
+        Value value = values.get(key);
+        return value == null ? -1 : value.time;
+    }
+
+    /**
+     * Start writing a batch of updates, e.g. a packet. Writers (clients sharing the values) take turns.
+     */
+    public void beginUpdate() {
+        writeLock.lock();
+        sequence++;
+    }
+
+    /**
+     * Finish the batch started by beginUpdate(), publishing it to snapshot().
+     */
+    public void endUpdate() {
+        sequence++;
+        writeLock.unlock();
+    }
+
+    /**
+     * Record a received message. Call between beginUpdate() and endUpdate(). Only notifications are recorded.
+     * @param msg
+     */
+    public void update(MOOSMsg msg) {
+        if (msg.isType(MOOSMsg.MOOS_NOTIFY) && msg.getKey() != null) {
+            char type = msg.isDouble() ? MOOSMsg.MOOS_DOUBLE : msg.isString() ? MOOSMsg.MOOS_STRING : MOOSMsg.MOOS_BINARY_STRING;
+            ByteBuffer payload = null;
+            MOOSSharedBuffer owner = null;
+            if (type == MOOSMsg.MOOS_BINARY_STRING) {
+                synchronized (msg) {
+                    if (msg.binaryBuffer != null) {
+                        payload = msg.binaryBuffer;
+                        owner = msg.binaryOwner.retain();
+                    } else if (msg.binaryData != null) {
+                        payload = ByteBuffer.wrap(msg.binaryData).asReadOnlyBuffer();
+                    }
+                }
+            }
+            set(get(msg.getKey()), type, msg.getDoubleData(), msg.isString() ? msg.getStringData() : null,
+                    payload, owner, msg.getTime(), msg.getSource());
+        }
+    }
+
+    /**
+     * Record a message read in place. Call between beginUpdate() and endUpdate(). Only notifications are recorded.
+     * @param view
+     */
+    public void update(MOOSMsgView view) {
+        if (view.isType(MOOSMsg.MOOS_NOTIFY)) {
+            ByteBuffer payload = null;
+            MOOSSharedBuffer owner = null;
+            if (view.isBinary()) {
+                owner = view.getOwner();
+                if (owner != null) {
+                    payload = view.getDataBuffer();
+                    owner.retain();
+                } else {
+                    payload = ByteBuffer.wrap(view.getBinaryData()).asReadOnlyBuffer(); // the packet won't last
+                }
+            }
+            set(get(view.getKey()), view.getDataType(), view.isDouble() ? view.getDoubleData() : Double.NaN,
+                    view.isString() ? view.getStringData() : null, payload, owner, view.getTime(), view.getSource());
+        }
+    }
+
+    /**
+     * @param owner what binaryBuffer points into, already retained for the Value, or null
+     */
+    protected void set(Value value, char dataType, double doubleData, String stringData, ByteBuffer binaryBuffer, MOOSSharedBuffer owner, double time, String source) {
+        MOOSSharedBuffer previous = value.binaryOwner;
+        value.dataType = dataType;
+        value.doubleData = dataType == MOOSMsg.MOOS_DOUBLE ? doubleData : Double.NaN;
+        value.stringData = stringData;
+        value.binaryBuffer = binaryBuffer;
+        value.binaryOwner = owner;
+        value.time = time;
+        value.source = source;
+        value.updateCount++;
+        if (previous != null) {
+            previous.release(); // after binaryBuffer moved on, so getBinaryData() notices
+        }
+    }
+
+    /**
+     * Read several doubles as they stood at the end of one update, for instance a position which mustn't mix
+     * NAV_X from one packet with NAV_Y from the next. Retries (spinning, then yielding) while an update is in progress.
+     * @param keys Values from get()
+     * @param out filled in the same order, NaN for anything which isn't a double
+     * @return the sequence number of the update they came from, to tell whether anything has changed since
+     */
+    public long snapshot(Value[] keys, double[] out) {
+        return snapshot(keys, out, null);
+    }
+
+    /**
+     * Read several values as they stood at the end of one update.
+     * @param keys Values from get()
+     * @param doubles filled in the same order, may be null
+     * @param strings filled in the same order, may be null
+     * @return the sequence number of the update they came from
+     */
+    public long snapshot(Value[] keys, double[] doubles, String[] strings) {
+        for (int tries = 0;; tries++) {
+            long before = sequence;
+            if ((before & 1) == 0) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (doubles != null) {
+                        doubles[i] = keys[i].doubleData;
+                    }
+                    if (strings != null) {
+                        strings[i] = keys[i].stringData;
+                    }
+                }
+                if (sequence == before) {
+                    return before;
+                }
+            }
+            if (tries > 100) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @param keys variable names
+     * @param out filled in the same order
+     * @return the sequence number of the update they came from
+     */
+    public long snapshot(String[] keys, double[] out) {
+        Value[] handles = new Value[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            handles[i] = get(keys[i]);
+        }
+        return snapshot(handles, out, null);
+    }
+
+    /**
+     * @return the number of the latest update, which goes up by two with every update
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of variables known
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Forget every value. Values already handed out stay as they are but are no longer updated.
+     */
+    public void clear() {
+        values.clear();
+    }
+}
@@ -0,0 +1,322 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers mail to one MOOSMsgEventListener for a MOOSDispatchTable, and times how long it takes.
+ *
+ * Without an executor deliver() just calls the listener. With one, offer() copies the mail into a bounded queue
+ * and makes sure a task is running on the executor to empty it. At most one task per listener runs at a time, so
+ * each listener still gets its mail in the order it arrived, one call at a time, while different listeners run
+ * in parallel and a slow one no longer holds up the comms thread or anybody else.
+ *
+ * When a listener falls so far behind that its queue is full, the OverflowPolicy decides what gives, and every
+ * message the listener misses is counted.
+ */
+public class MOOSListenerQueue implements Runnable {
+
+    public enum OverflowPolicy {
+
+        /** Throw away the listener's oldest mail to make room. */
+        DROP_OLDEST,
+        /** Throw away the mail arriving. */
+        DROP_NEWEST,
+        /** Make the comms thread wait for room, which slows everything to the pace of the slowest listener but loses nothing. */
+        BLOCK
+    }
+
+    public static final int DEFAULT_QUEUE_LENGTH = 1000;
+    protected final MOOSMsgEventListener listener;
+    protected final MOOSInbox<MOOSMsg> queue;
+    protected volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    protected volatile Executor executor;
+    protected volatile boolean closed;
+    protected final AtomicBoolean scheduled = new AtomicBoolean();
+    // only used by the task, of which there is one at a time
+    protected final ArrayList<MOOSMsg> drained = new ArrayList<MOOSMsg>();
+    protected final ArrayList<MOOSMsg> run = new ArrayList<MOOSMsg>();
+    // statistics, each written by one thread at a time
+    protected volatile long callbackCount;
+    protected volatile long callbackNanos;
+    protected volatile long maxCallbackNanos;
+    protected volatile long droppedNewest;
+    protected volatile long decimatedCount;
+    // the interval the listener asked for on each variable name or MOOSWildcard, kept by MOOSDispatchTable
+    protected final HashMap<Object, Double> intervals = new HashMap<Object, Double>();
+    // the time of the last message the listener was sent of each variable it is decimated on, kept by
+    // MOOSDispatchTable here rather than on its Entries so that it outlives them
+    protected final HashMap<String, double[]> lastDelivered = new HashMap<String, double[]>();
+
+    public MOOSListenerQueue(MOOSMsgEventListener listener) {
+        this(listener, DEFAULT_QUEUE_LENGTH);
+    }
+
+    /**
+     * @param listener
+     * @param queueLength the most messages waiting for the listener
+     */
+    public MOOSListenerQueue(MOOSMsgEventListener listener, int queueLength) {
+        this.listener = listener;
+        this.queue = new MOOSInbox<MOOSMsg>(queueLength, Long.MAX_VALUE);
+    }
+
+    /**
+     * Call the listener now, on this thread.
+     * @param messages messages for one variable, oldest first
+     */
+    public void deliver(List<MOOSMsg> messages) {
+        long start = System.nanoTime();
+        try {
+            listener.processMOOSMsg(messages);
+        } catch (Exception e) { // we don't want to crash the MOOS thread is a process goes wrong, so we just report it.
+            e.printStackTrace();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            callbackCount++;
+            callbackNanos += nanos;
+            if (nanos > maxCallbackNanos) {
+                maxCallbackNanos = nanos;
+            }
+        }
+    }
+
+    /**
+     * Queue messages for the listener, to be delivered on executor. The list isn't kept.
+     * @param messages oldest first
+     * @param executor
+     */
+    public void offer(List<MOOSMsg> messages, Executor executor) {
+        if (closed) {
+            return;
+        }
+        this.executor = executor;
+        synchronized (queue) {
+            for (MOOSMsg msg : messages) {
+                if (queue.size() >= queue.getMaxMessages()) {
+                    if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                        droppedNewest++;
+                        continue;
+                    }
+                    while (overflowPolicy == OverflowPolicy.BLOCK && queue.size() >= queue.getMaxMessages() && !closed) {
+                        schedule(); // make sure somebody is emptying it
+                        try {
+                            queue.wait(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+                queue.add(msg, 0); // drops the oldest if it is still full
+            }
+        }
+        schedule();
+    }
+
+    protected void schedule() {
+        Executor e = executor;
+        if (e != null && !queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                e.execute(this);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                System.out.println("CAUGHT EXCEPTION: ");
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deliver what is queued, then hand the executor back, rescheduling if more mail came in meanwhile.
+     */
+    @Override
+    public void run() {
+        try {
+            synchronized (queue) {
+                queue.drainTo(drained);
+                queue.notifyAll(); // room for a blocked comms thread
+            }
+            // consecutive messages for the same variable go in one call, as they would without an executor
+            for (int i = 0; i < drained.size(); i++) {
+                MOOSMsg msg = drained.get(i);
+                if (!run.isEmpty() && !run.get(0).getKey().equals(msg.getKey())) {
+                    deliver(run);
+                    run.clear();
+                }
+                run.add(msg);
+            }
+            if (!run.isEmpty() && !closed) {
+                deliver(run);
+            }
+        } finally {
+            drained.clear();
+            run.clear();
+            scheduled.set(false);
+        }
+        schedule();
+    }
+
+    /**
+     * Stop delivering, dropping anything queued and releasing a comms thread blocked on the queue.
+     */
+    public void close() {
+        closed = true;
+        synchronized (queue) {
+            queue.clear();
+            queue.notifyAll();
+        }
+    }
+
+    public MOOSMsgEventListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return the number of messages waiting for the listener
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public int getQueueLength() {
+        return queue.getMaxMessages();
+    }
+
+    /**
+     * @param queueLength the most messages waiting for the listener
+     */
+    public void setQueueLength(int queueLength) {
+        queue.setMaxMessages(queueLength);
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy what to do when the queue is full
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the number of messages the listener has missed because its queue was full
+     */
+    public long getDroppedCount() {
+        return queue.getDroppedCount() + droppedNewest;
+    }
+
+    /**
+     * @return the number of messages not passed on because they came quicker than the listener's interval
+     */
+    public long getDecimatedCount() {
+        return decimatedCount;
+    }
+
+    /**
+     * @param n messages held back from the listener by decimation
+     */
+    protected void decimated(int n) {
+        decimatedCount += n;
+    }
+
+    /**
+     * @param subscription a variable name or MOOSWildcard
+     * @return the least time in seconds between messages the listener wants for it, 0 for every message
+     */
+    protected double getInterval(Object subscription) {
+        Double interval = intervals.get(subscription);
+        return interval == null ? 0 : interval;
+    }
+
+    /**
+     * @param var
+     * @return a holder for the time of the last message of var the listener was sent, the same one each time
+     */
+    protected double[] lastDelivered(String var) {
+        double[] time = lastDelivered.get(var);
+        if (time == null) {
+            if (lastDelivered.size() >= MOOSPatternMatcher.MAX_MEMO) {
+                lastDelivered.clear(); // a stream of unique names mustn't fill the heap
+            }
+            time = new double[]{Double.NEGATIVE_INFINITY};
+            lastDelivered.put(var, time);
+        }
+        return time;
+    }
+
+    /**
+     * @return the number of times the listener has been called
+     */
+    public long getCallbackCount() {
+        return callbackCount;
+    }
+
+    /**
+     * @return the total time spent in the listener, in nanoseconds
+     */
+    public long getCallbackNanos() {
+        return callbackNanos;
+    }
+
+    /**
+     * @return the longest single call to the listener, in nanoseconds
+     */
+    public long getMaxCallbackNanos() {
+        return maxCallbackNanos;
+    }
+
+    /**
+     * @return the mean time per call to the listener in milliseconds, 0 if it hasn't been called
+     */
+    public double getMeanCallbackMillis() {
+        long n = callbackCount;
+        return n == 0 ? 0 : callbackNanos / 1e6 / n;
+    }
+
+    public void resetStatistics() {
+        callbackCount = 0;
+        callbackNanos = 0;
+        maxCallbackNanos = 0;
+        decimatedCount = 0;
+    }
+}
@@ -72,6 +72,8 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
     public static final char MOOS_POISON = 'K';
     public static final char MOOS_WELCOME = 'W';
     public static final char MOOS_SERVER_REQUEST = 'Q';
+    public static final char MOOS_WILDCARD_REGISTER = '*';
+    public static final char MOOS_WILDCARD_UNREGISTER = '/';
     // MESSAGE DATA TYPES
     public static final char MOOS_DOUBLE = 'D';
     public static final char MOOS_STRING = 'S';
@@ -103,6 +105,10 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
     protected String stringData;
     // binary data
     protected byte[] binaryData;
+    // or, for received binary messages, a read only view of the receive buffer and our reference to it
+    protected transient ByteBuffer binaryBuffer;
+    protected transient MOOSSharedBuffer binaryOwner;
+    protected transient int binaryHolds; // retain()s not yet matched by release(), the receiver's counting as one
     //who sent this message?
     protected String source;
     //extra info on source (optional payload)
@@ -111,6 +117,12 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
     protected String community;
     // message length in bytes
     protected int msgLength;
+    // encoded strings, cached from the first time the message is sized or serialised. Keys, sources and communities come from MOOSStringTable.
+    protected transient byte[] sourceBytes;
+    protected transient byte[] sourceAuxInfoBytes;
+    protected transient byte[] communityBytes;
+    protected transient byte[] varNameBytes;
+    protected transient byte[] stringDataBytes;
 
     //Tag for Android Logger
     private static final String TAG = "MOOS";
@@ -296,6 +308,7 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
 
     public void setSource(String source) {
         this.source = source;
+        this.sourceBytes = null;
     }
 
     public String getSourceAux() {
@@ -304,6 +317,7 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
 
     public void getSourceAux(String sSrcAux) {
         sourceAuxInfo = sSrcAux;
+        sourceAuxInfoBytes = null;
     }
 
     /**return the name of the MOOS community in which the originator lives*/
@@ -321,37 +335,22 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
      * @return length in bytes if were serialised
      */
     public int getSizeInBytesWhenSerialised() {
-        int sourceLength = 0;
-        if (source != null) {
-            sourceLength = source.getBytes().length;
-        }
-        int communityLength = 0;
-        if (community != null) {
-            communityLength = community.getBytes().length;
-        }
-        int varNameLength = 0;
-        if (varName != null) {
-            varNameLength = varName.getBytes().length;
-        }
-        int stringDataLength = 0;
-        if (this.dataType == this.MOOS_BINARY_STRING && binaryData != null) {
-            stringDataLength = binaryData.length;
-        } else if (stringData != null) {
-            stringDataLength = stringData.getBytes().length;
-        }
-        int sourceAuxInfoLength = 0;
-        if (sourceAuxInfo != null) {
-            sourceAuxInfoLength = sourceAuxInfo.getBytes().length;
+        encodeStrings();
+        int stringDataLength;
+        if (this.dataType == this.MOOS_BINARY_STRING && (binaryData != null || binaryBuffer != null)) {
+            stringDataLength = binaryBuffer != null ? binaryBuffer.remaining() : binaryData.length;
+        } else {
+            stringDataLength = stringDataBytes.length;
         }
 
         int nInt = 2 * INT_SIZE_IN_BYTES;
         int nChar = 2 * BYTE_SIZE_IN_BYTES;
-        int nString = INT_SIZE_IN_BYTES + sourceLength
-                + INT_SIZE_IN_BYTES + communityLength
-                + INT_SIZE_IN_BYTES + varNameLength
+        int nString = INT_SIZE_IN_BYTES + sourceBytes.length
+                + INT_SIZE_IN_BYTES + communityBytes.length
+                + INT_SIZE_IN_BYTES + varNameBytes.length
                 + INT_SIZE_IN_BYTES + stringDataLength;
         if (!DISABLE_AUX_SOURCE) {
-            nString += INT_SIZE_IN_BYTES + sourceAuxInfoLength;
+            nString += INT_SIZE_IN_BYTES + sourceAuxInfoBytes.length;
         }
 
         int nDouble = 3 * DOUBLE_SIZE_IN_BYTES;
@@ -361,19 +360,47 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
     }
 
     /**
-     * This function writes a string with an integer representing its length preceeding the string bytes to the supplied ByteBuffer
-     * @param msgBuffer
-     * @param s
+     * Encode any strings which haven't been encoded since they were set. The fields are encoded at most once however many times the message is sized or serialised.
      */
-    protected void putString(ByteBuffer msgBuffer, String s) {
-        if (s == null || s.length() <= 0) {
-            msgBuffer.putInt(0);
-        } else {
-            msgBuffer.putInt(s.length());
-            msgBuffer.put(s.getBytes());
+    protected void encodeStrings() {
+        if (sourceBytes == null) {
+            sourceBytes = MOOSStringTable.intern(source);
+        }
+        if (sourceAuxInfoBytes == null) {
+            sourceAuxInfoBytes = MOOSStringTable.encode(sourceAuxInfo); // free text, interning it would fill the table
+        }
+        if (communityBytes == null) {
+            communityBytes = MOOSStringTable.intern(community);
+        }
+        if (varNameBytes == null) {
+            varNameBytes = MOOSStringTable.intern(varName);
+        }
+        if (stringDataBytes == null) {
+            stringDataBytes = MOOSStringTable.encode(stringData);
         }
     }
 
+    /**
+     * Forget the cached encodings, for when the fields have been overwritten.
+     */
+    protected void clearEncodings() {
+        sourceBytes = null;
+        sourceAuxInfoBytes = null;
+        communityBytes = null;
+        varNameBytes = null;
+        stringDataBytes = null;
+    }
+
+    /**
+     * This function writes an encoded string with an integer representing its length in bytes preceeding the string bytes to the supplied ByteBuffer
+     * @param msgBuffer
+     * @param bytes
+     */
+    protected void putString(ByteBuffer msgBuffer, byte[] bytes) {
+        msgBuffer.putInt(bytes.length);
+        msgBuffer.put(bytes);
+    }
+
     /**
      * This reads the integer length value and then reads the remaining length n bytes into a String object
      * @param msgBuffer
@@ -385,12 +412,28 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
             byte[] charData = new byte[length];
             binaryData = charData; // always update the binaryData - ends up being the last bit of stringData if it is binary anyway.
             msgBuffer.get(charData);
-            return new String(charData);
+            return new String(charData, MOOSStringTable.CHARSET);
         } else {
             return new String(); // decided that returning the empty string may cause problems...
         }
     }
 
+    /**
+     * Reads a string the same way as getString() but through the MOOSStringTable decode cache, so identifiers which are seen over and over don't allocate. The binaryData field is left alone.
+     * @param msgBuffer
+     * @return the next String from the ByteBuffer, shared with other messages
+     */
+    protected String getCachedString(ByteBuffer msgBuffer) {
+        int length = msgBuffer.getInt();
+        if (length > 0) {
+            String s = MOOSStringTable.decode(msgBuffer, msgBuffer.position(), length);
+            msgBuffer.position(msgBuffer.position() + length);
+            return s;
+        } else {
+            return "";
+        }
+    }
+
     /**
      * This method never calls rewind on the passed ByteBuffer, only reads or writes to it from its current position. This method assumes that the buffer is big enough and has been creates as such by a moos packet.
      * @param msgBuffer The ByteBuffer to serialise the message to/from
@@ -403,52 +446,168 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
             msgLength = this.getSizeInBytesWhenSerialised();
             msgBuffer.putInt(msgLength);
             msgBuffer.putInt(this.msgID);
-            msgBuffer.put(String.valueOf(this.msgType).getBytes()[0]);
-            msgBuffer.put(String.valueOf(this.dataType).getBytes()[0]);
+            msgBuffer.put((byte) this.msgType);
+            msgBuffer.put((byte) this.dataType);
 
-            putString(msgBuffer, source);
+            putString(msgBuffer, sourceBytes);
 
             if (!DISABLE_AUX_SOURCE) {
-                putString(msgBuffer, sourceAuxInfo);
+                putString(msgBuffer, sourceAuxInfoBytes);
             }
 
-            putString(msgBuffer, community);
-            putString(msgBuffer, varName);
+            putString(msgBuffer, communityBytes);
+            putString(msgBuffer, varNameBytes);
 
             msgBuffer.putDouble(time);
             msgBuffer.putDouble(doubleData);
             msgBuffer.putDouble(m_dfVal2);
 
             if (this.dataType == this.MOOS_BINARY_STRING) {
-                msgBuffer.putInt(binaryData.length).put(binaryData);
+                if (binaryBuffer != null) {
+                    msgBuffer.putInt(binaryBuffer.remaining()).put(binaryBuffer.duplicate());
+                } else {
+                    msgBuffer.putInt(binaryData.length).put(binaryData);
+                }
             } else {
-                putString(msgBuffer, stringData);
+                putString(msgBuffer, stringDataBytes);
             }
 
 
         } else {
-            this.msgLength = msgBuffer.getInt();
-            this.msgID = msgBuffer.getInt();
-            this.msgType = new String(new byte[]{msgBuffer.get()}).charAt(0);
-            this.dataType = new String(new byte[]{msgBuffer.get()}).charAt(0);
+            deserialize(msgBuffer, null);
+        }
+        return msgLength;
+    }
+
+    /**
+     * Populate this message from the supplied ByteBuffer, as serialize(msgBuffer, false).
+     * @param msgBuffer The ByteBuffer to read the message from, from its current position
+     * @param owner the shared buffer msgBuffer belongs to. If given, a binary payload is left where it is and the message retains owner, otherwise the payload is copied.
+     * @return the length of the message in bytes
+     */
+    public int deserialize(ByteBuffer msgBuffer, MOOSSharedBuffer owner) {
+        clearEncodings();
+        this.msgLength = msgBuffer.getInt();
+        this.msgID = msgBuffer.getInt();
+        this.msgType = (char) (msgBuffer.get() & 0xFF);
+        this.dataType = (char) (msgBuffer.get() & 0xFF);
 
-            this.source = this.getString(msgBuffer);
+        this.source = this.getCachedString(msgBuffer);
+
+        if (!DISABLE_AUX_SOURCE) {
+            this.sourceAuxInfo = this.getString(msgBuffer);
+        }
+
+        this.community = this.getCachedString(msgBuffer);
+        this.varName = this.getCachedString(msgBuffer);
+
+        this.time = msgBuffer.getDouble();
+        this.doubleData = msgBuffer.getDouble();
+        this.m_dfVal2 = msgBuffer.getDouble();
+
+        if (this.dataType == MOOS_BINARY_STRING) {
+            readBinary(msgBuffer, owner);
+        } else {
+            this.stringData = getString(msgBuffer); // this will populate the binary data field also.
+        }
+        return msgLength;
+    }
+
+    /**
+     * Read a binary payload, which is never turned into a String.
+     */
+    protected void readBinary(ByteBuffer msgBuffer, MOOSSharedBuffer owner) {
+        this.stringData = null;
+        int length = Math.max(msgBuffer.getInt(), 0);
+        if (owner != null) {
+            ByteBuffer payload = msgBuffer.duplicate();
+            payload.limit(payload.position() + length);
+            setBinaryBuffer(payload.slice().asReadOnlyBuffer(), owner);
+            msgBuffer.position(msgBuffer.position() + length);
+        } else {
+            byte[] payload = new byte[length];
+            msgBuffer.get(payload);
+            setBinaryData(payload);
+        }
+    }
+
+    /**
+     * Point the binary payload into a shared buffer, retaining it, with this message's one hold on it.
+     * @param payload a read only buffer over the payload
+     * @param owner what payload belongs to
+     */
+    protected synchronized void setBinaryBuffer(ByteBuffer payload, MOOSSharedBuffer owner) {
+        dropBinary();
+        this.binaryBuffer = payload;
+        this.binaryOwner = owner.retain();
+        this.binaryHolds = 1;
+    }
+
+    /**
+     * Let go of any shared buffer and payload whoever still holds them.
+     */
+    protected synchronized void dropBinary() {
+        if (binaryOwner != null) {
+            binaryOwner.release();
+        }
+        binaryOwner = null;
+        binaryBuffer = null;
+        binaryHolds = 0;
+        binaryData = null;
+    }
+
+    /**
+     * Gathering write counterpart of serialize(msgBuffer, true). Everything but the payload of a binary message is written to msgBuffer, the payload itself is returned so that it can be written straight from its own array rather than being copied.
+     * @param msgBuffer The ByteBuffer to serialise the message to, which must have getSizeInBytesWhenSerialised() - getGatherPayloadLength() bytes remaining
+     * @return the binary payload which follows the bytes written, a read only view of it rather than a copy, or null if the whole message was written to msgBuffer
+     */
+    public ByteBuffer serializeGathering(ByteBuffer msgBuffer) {
+        ByteBuffer payload = null;
+        if (this.dataType == MOOS_BINARY_STRING) {
+            // the sender's own array, or the received payload where it lies, never a copy
+            payload = binaryData != null ? ByteBuffer.wrap(binaryData) : getBinaryBuffer();
+        }
+        if (payload != null) {
+            msgLength = this.getSizeInBytesWhenSerialised();
+            msgBuffer.putInt(msgLength);
+            msgBuffer.putInt(this.msgID);
+            msgBuffer.put((byte) this.msgType);
+            msgBuffer.put((byte) this.dataType);
+
+            putString(msgBuffer, sourceBytes);
 
             if (!DISABLE_AUX_SOURCE) {
-                this.sourceAuxInfo = this.getString(msgBuffer);
+                putString(msgBuffer, sourceAuxInfoBytes);
             }
 
-            this.community = this.getString(msgBuffer);
-            this.varName = this.getString(msgBuffer);
+            putString(msgBuffer, communityBytes);
+            putString(msgBuffer, varNameBytes);
 
-            this.time = msgBuffer.getDouble();
-            this.doubleData = msgBuffer.getDouble();
-            this.m_dfVal2 = msgBuffer.getDouble();
+            msgBuffer.putDouble(time);
+            msgBuffer.putDouble(doubleData);
+            msgBuffer.putDouble(m_dfVal2);
 
-            this.stringData = getString(msgBuffer); // this will populate the binary data field also.
+            msgBuffer.putInt(payload.remaining());
+            return payload;
+        } else {
+            serialize(msgBuffer, true);
+            return null;
+        }
+    }
 
+    /**
+     * @return the number of bytes serializeGathering() leaves out of the buffer, i.e. the length of a binary payload
+     */
+    public int getGatherPayloadLength() {
+        if (this.dataType == MOOS_BINARY_STRING) {
+            ByteBuffer payload = binaryBuffer;
+            if (payload != null) {
+                return payload.remaining();
+            } else if (binaryData != null) {
+                return binaryData.length;
+            }
         }
-        return msgLength;
+        return 0;
     }
 
     public int getLength() {
@@ -550,22 +709,75 @@ public class MOOSMsg extends java.util.EventObject implements java.io.Serializab
      */
     public void setSourceAuxInfo(String sourceAuxInfo) {
         this.sourceAuxInfo = sourceAuxInfo;
+        this.sourceAuxInfoBytes = null;
     }
 
     /**
-     * @return the binaryData
+     * @return the binaryData. For a received binary message this is a copy of the payload, made on the first call, getBinaryBuffer() avoids the copy.
      */
     public byte[] getBinaryData() {
+        if (binaryData == null && binaryBuffer != null) {
+            byte[] copy = new byte[binaryBuffer.remaining()];
+            binaryBuffer.duplicate().get(copy);
+            binaryData = copy;
+        }
         return binaryData;
     }
 
     /**
      * @param binaryData the binaryData to set
      */
-    public void setBinaryData(byte[] binaryData) {
+    public synchronized void setBinaryData(byte[] binaryData) {
+        dropBinary();
         this.binaryData = binaryData;
     }
 
+    /**
+     * @return a read only buffer over the binary payload. For a received message it points straight into the
+     * receive buffer, so call release() when finished with it to let that buffer be reused. Null if there is no payload.
+     */
+    public ByteBuffer getBinaryBuffer() {
+        ByteBuffer payload = binaryBuffer;
+        if (payload != null) {
+            return payload.duplicate();
+        } else if (binaryData != null) {
+            return ByteBuffer.wrap(binaryData).asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    /**
+     * Take another hold on the receive buffer a binary payload points into, for keeping the message after
+     * whoever handed it over (another listener, say) has released it. Match each call with a release().
+     * @return this
+     */
+    public synchronized MOOSMsg retain() {
+        if (binaryOwner != null) {
+            binaryHolds++;
+        }
+        return this;
+    }
+
+    /**
+     * Give up a hold on the receive buffer a binary payload points into. The message starts with one hold, its
+     * receiver's, and retain() adds more; when the last is released the buffer goes back to the pool and the
+     * payload is gone, unless getBinaryData() has been called to copy it. Harmless for any other message, and
+     * releasing more often than the message was held does nothing.
+     */
+    public synchronized void release() {
+        if (binaryOwner != null && --binaryHolds <= 0) {
+            binaryOwner.release();
+            binaryOwner = null;
+            binaryBuffer = null;
+            binaryHolds = 0;
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+        getBinaryData(); // the buffer is transient
+        out.defaultWriteObject();
+    }
+
     public String strTrace() {
 
         String trace=new String();
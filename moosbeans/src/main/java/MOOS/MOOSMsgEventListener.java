@@ -42,6 +42,7 @@ public interface MOOSMsgEventListener extends java.util.EventListener {
 /**
  *
  * @param messages an array of MOOS messages. This can be an array, or a list or any of the java collection classes.
+ * It may be reused once this returns, so copy the messages out to keep them.
  */
     public void processMOOSMsg(Iterable<MOOSMsg> messages);
     
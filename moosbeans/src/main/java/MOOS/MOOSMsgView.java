@@ -0,0 +1,335 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read only flyweight over the messages of a received packet. Rather than decoding every field of every message
+ * into a new MOOSMsg, the view remembers where each field lies in the packet and reads it only when asked:
+ * numbers are read straight from the buffer and strings are decoded on first use (identifiers through the MOOSStringTable cache). One view is reused for every
+ * message, so a consumer which only looks at the key and the double decodes high rate mail without allocating.
+ *
+ * Usage:
+ * view.wrap(pkt.getBytes());
+ * while (view.next()) {
+ *     if (view.isKey("NAV_X")) x = view.getDoubleData();
+ * }
+ *
+ * A view is only valid until the packet buffer is recycled; call toMOOSMsg() to keep a message.
+ */
+public class MOOSMsgView {
+
+    /**
+     * Gets the chance to consume each received message as a view before it is turned into a MOOSMsg for the inbox.
+     * Called on the client's I/O thread, so it must be quick and must not keep the view.
+     */
+    public interface Handler {
+
+        /**
+         * @param view the message, valid only for the duration of the call
+         * @return true if the message has been dealt with, false to have it put in the inbox as usual
+         */
+        boolean onMsgView(MOOSMsgView view);
+    }
+    protected ByteBuffer packet;
+    protected MOOSSharedBuffer owner; // what packet belongs to, if it is shared
+    protected int msgCount;
+    protected int msgIndex;
+    protected int nextOffset;
+    // where the current message's fields are in the packet
+    protected int offset;
+    protected int sourceOffset;
+    protected int sourceAuxInfoOffset = -1;
+    protected int communityOffset;
+    protected int keyOffset;
+    protected int timeOffset;
+    protected int dataOffset;
+    // strings decoded so far from the current message
+    protected String source;
+    protected String sourceAuxInfo;
+    protected String community;
+    protected String key;
+    protected String stringData;
+
+    /**
+     * Point the view at a packet, before its first message. Call next() to move on to each message in turn.
+     * @param packet a whole uncompressed packet starting at index 0, as returned by MOOSCommPkt.getBytes() after fill()
+     */
+    public void wrap(ByteBuffer packet) {
+        wrap(packet, null);
+    }
+
+    /**
+     * Point the view at a packet in a shared buffer, so that data can be kept beyond the life of the packet by retaining owner.
+     * @param packet a whole uncompressed packet starting at index 0
+     * @param owner the shared buffer packet belongs to, or null
+     */
+    public void wrap(ByteBuffer packet, MOOSSharedBuffer owner) {
+        this.owner = owner;
+        if (packet.order() != MOOSMsg.MOOS_BYTE_ORDER) {
+            packet.order(MOOSMsg.MOOS_BYTE_ORDER);
+        }
+        this.packet = packet;
+        msgCount = packet.getInt(MOOSMsg.INT_SIZE_IN_BYTES);
+        msgIndex = 0;
+        nextOffset = MOOSCommPkt.PACKET_HEADER_SIZE;
+        offset = -1;
+        forgetStrings();
+    }
+
+    /**
+     * Move on to the next message in the packet.
+     * @return false when there are no more messages
+     */
+    public boolean next() {
+        if (packet == null || msgIndex >= msgCount) {
+            return false;
+        }
+        offset = nextOffset;
+        int position = offset + 2 * MOOSMsg.INT_SIZE_IN_BYTES + 2 * MOOSMsg.BYTE_SIZE_IN_BYTES;
+        sourceOffset = position;
+        position = skipString(position);
+        if (!MOOSMsg.DISABLE_AUX_SOURCE) {
+            sourceAuxInfoOffset = position;
+            position = skipString(position);
+        } else {
+            sourceAuxInfoOffset = -1;
+        }
+        communityOffset = position;
+        position = skipString(position);
+        keyOffset = position;
+        position = skipString(position);
+        timeOffset = position;
+        position += 3 * MOOSMsg.DOUBLE_SIZE_IN_BYTES;
+        dataOffset = position;
+        nextOffset = skipString(position);
+        msgIndex++;
+        forgetStrings();
+        return true;
+    }
+
+    protected int skipString(int position) {
+        int length = packet.getInt(position);
+        return position + MOOSMsg.INT_SIZE_IN_BYTES + Math.max(length, 0);
+    }
+
+    protected void forgetStrings() {
+        source = null;
+        sourceAuxInfo = null;
+        community = null;
+        key = null;
+        stringData = null;
+    }
+
+    /**
+     * Decode a key, source or community through the MOOSStringTable decode cache.
+     */
+    protected String decodeIdentifier(int position) {
+        return MOOSStringTable.decode(packet, position + MOOSMsg.INT_SIZE_IN_BYTES, packet.getInt(position));
+    }
+
+    protected String decodeString(int position) {
+        int length = packet.getInt(position);
+        if (length <= 0) {
+            return "";
+        }
+        position += MOOSMsg.INT_SIZE_IN_BYTES;
+        if (packet.hasArray()) {
+            return new String(packet.array(), packet.arrayOffset() + position, length, MOOSStringTable.CHARSET);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer field = packet.duplicate();
+        field.position(position);
+        field.get(bytes);
+        return new String(bytes, MOOSStringTable.CHARSET);
+    }
+
+    /**
+     * Compare an encoded string field with the given bytes, without decoding it.
+     */
+    protected boolean stringEquals(int position, byte[] bytes) {
+        int length = Math.max(packet.getInt(position), 0);
+        if (length != bytes.length) {
+            return false;
+        }
+        position += MOOSMsg.INT_SIZE_IN_BYTES;
+        for (int i = 0; i < bytes.length; i++) {
+            if (packet.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of messages in the packet
+     */
+    public int getMsgCount() {
+        return msgCount;
+    }
+
+    /**
+     * @return the length in bytes of the current message
+     */
+    public int getLength() {
+        return packet.getInt(offset);
+    }
+
+    public int getMsgID() {
+        return packet.getInt(offset + MOOSMsg.INT_SIZE_IN_BYTES);
+    }
+
+    public char getMsgType() {
+        return (char) (packet.get(offset + 2 * MOOSMsg.INT_SIZE_IN_BYTES) & 0xFF);
+    }
+
+    public char getDataType() {
+        return (char) (packet.get(offset + 2 * MOOSMsg.INT_SIZE_IN_BYTES + MOOSMsg.BYTE_SIZE_IN_BYTES) & 0xFF);
+    }
+
+    public boolean isType(char cType) {
+        return getMsgType() == cType;
+    }
+
+    public boolean isDouble() {
+        return getDataType() == MOOSMsg.MOOS_DOUBLE;
+    }
+
+    public boolean isString() {
+        return getDataType() == MOOSMsg.MOOS_STRING;
+    }
+
+    public boolean isBinary() {
+        return getDataType() == MOOSMsg.MOOS_BINARY_STRING;
+    }
+
+    public double getTime() {
+        return packet.getDouble(timeOffset);
+    }
+
+    public double getDoubleData() {
+        return packet.getDouble(timeOffset + MOOSMsg.DOUBLE_SIZE_IN_BYTES);
+    }
+
+    /**
+     * @param key a variable name
+     * @return whether this message is about key, found by comparing bytes so nothing is decoded
+     */
+    public boolean isKey(String key) {
+        if (this.key != null) {
+            return this.key.equals(key);
+        }
+        return stringEquals(keyOffset, MOOSStringTable.intern(key));
+    }
+
+    public String getKey() {
+        if (key == null) {
+            key = decodeIdentifier(keyOffset);
+        }
+        return key;
+    }
+
+    public String getSource() {
+        if (source == null) {
+            source = decodeIdentifier(sourceOffset);
+        }
+        return source;
+    }
+
+    public String getSourceAuxInfo() {
+        if (sourceAuxInfo == null) {
+            sourceAuxInfo = sourceAuxInfoOffset < 0 ? "" : decodeString(sourceAuxInfoOffset);
+        }
+        return sourceAuxInfo;
+    }
+
+    public String getCommunity() {
+        if (community == null) {
+            community = decodeIdentifier(communityOffset);
+        }
+        return community;
+    }
+
+    public String getStringData() {
+        if (stringData == null) {
+            stringData = decodeString(dataOffset);
+        }
+        return stringData;
+    }
+
+    /**
+     * @return a read only buffer over the string or binary data of the message, without copying it. Only valid until the packet is recycled.
+     */
+    public ByteBuffer getDataBuffer() {
+        int length = Math.max(packet.getInt(dataOffset), 0);
+        ByteBuffer data = packet.duplicate();
+        data.limit(dataOffset + MOOSMsg.INT_SIZE_IN_BYTES + length);
+        data.position(dataOffset + MOOSMsg.INT_SIZE_IN_BYTES);
+        return data.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the shared buffer the packet belongs to, which getDataBuffer() stays good for as long as it is
+     * retained, or null if it isn't shared
+     */
+    public MOOSSharedBuffer getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return a copy of the binary (or string) data of the message
+     */
+    public byte[] getBinaryData() {
+        ByteBuffer data = getDataBuffer();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode the whole of the current message, for keeping beyond the life of the packet. If the packet is in a
+     * shared buffer a binary payload is left where it is and the message retains the buffer, as
+     * MOOSMsg.deserialize() does, so release() the message when done with it.
+     * @return a new MOOSMsg
+     */
+    public MOOSMsg toMOOSMsg() {
+        ByteBuffer msgBuffer = packet.duplicate().order(MOOSMsg.MOOS_BYTE_ORDER);
+        msgBuffer.limit(nextOffset);
+        msgBuffer.position(offset);
+        MOOSMsg msg = new MOOSMsg();
+        msg.deserialize(msgBuffer, owner);
+        return msg;
+    }
+}
@@ -0,0 +1,421 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The outbox of a MOOSCommClient. Any number of application threads may post() into it without taking a lock,
+ * while the single I/O thread drains it in the order messages were posted. What happens when it is full is
+ * decided by the OverflowPolicy, and every message the outbox throws away is counted.
+ *
+ * Keys can also be conflated: a notification for a conflated key replaces the unsent one with the same key in
+ * place instead of queueing behind it, so only the newest value of each key is ever waiting. The queue then acts
+ * as a list of dirty keys in the order they first became dirty, and its length is bounded by the number of
+ * distinct keys rather than by how fast they are published.
+ */
+public class MOOSOutbox {
+
+    public enum OverflowPolicy {
+
+        /** Throw away the oldest unsent message to make room (the C++ MOOSCommClient behaviour). */
+        DROP_OLDEST,
+        /** Throw away the message being posted. */
+        DROP_NEWEST,
+        /** Make the posting thread wait up to the block timeout for room, then throw the message away. */
+        BLOCK,
+        /** Overwrite the unsent notification with the same key if there is one, otherwise drop the oldest. Other messages are never overwritten. */
+        COALESCE_BY_KEY
+    }
+
+    /**
+     * A place in the queue. The message can be swapped for a newer one until the I/O thread takes it.
+     */
+    protected static class Slot extends AtomicReference<MOOSMsg> {
+
+        private static final long serialVersionUID = 1L;
+        protected final String key;
+
+        protected Slot(MOOSMsg msg) {
+            super(msg);
+            key = msg.getKey() == null ? "" : msg.getKey();
+        }
+    }
+    public static final int DEFAULT_CAPACITY = 500;
+    public static final long DEFAULT_BLOCK_TIMEOUT = 100; // ms
+    protected ConcurrentLinkedQueue<Slot> queue;
+    protected ConcurrentHashMap<String, Slot> pendingByKey; // newest unsent notification slot per key, kept while coalescing or conflating
+    protected AtomicInteger size;
+    protected volatile int capacity;
+    protected volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    protected volatile long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    protected volatile boolean conflateAll;
+    protected Set<String> conflatedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    protected final Object notFull = new Object();
+    protected volatile int blockedCount;
+    // statistics
+    protected AtomicLong droppedOldestCount = new AtomicLong();
+    protected AtomicLong droppedNewestCount = new AtomicLong();
+    protected AtomicLong coalescedCount = new AtomicLong();
+    protected AtomicLong conflatedCount = new AtomicLong();
+
+    public MOOSOutbox() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of unsent messages held before the overflow policy kicks in
+     */
+    public MOOSOutbox(int capacity) {
+        setCapacity(capacity);
+        queue = new ConcurrentLinkedQueue<Slot>();
+        pendingByKey = new ConcurrentHashMap<String, Slot>();
+        size = new AtomicInteger();
+    }
+
+    /**
+     * Add a message, applying the overflow policy if the outbox is full. Safe to call from any thread.
+     * @param msg
+     * @return false if the message was thrown away rather than queued
+     */
+    public boolean offer(MOOSMsg msg) {
+        boolean conflate = isConflated(msg);
+        if (conflate && replace(msg)) {
+            conflatedCount.incrementAndGet();
+            return true;
+        }
+        boolean indexed = conflate || (overflowPolicy == OverflowPolicy.COALESCE_BY_KEY && msg.isType(MOOSMsg.MOOS_NOTIFY));
+        long deadline = 0;
+        while (!reserve()) {
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    droppedNewestCount.incrementAndGet();
+                    return false;
+                case BLOCK:
+                    if (deadline == 0) {
+                        deadline = System.currentTimeMillis() + blockTimeout;
+                    }
+                    if (!awaitRoom(deadline)) {
+                        droppedNewestCount.incrementAndGet();
+                        return false;
+                    }
+                    break;
+                case COALESCE_BY_KEY:
+                    if (replace(msg)) {
+                        coalescedCount.incrementAndGet();
+                        return true;
+                    }
+                    makeRoom();
+                    break;
+                default:
+                    makeRoom();
+                    break;
+            }
+        }
+        Slot slot = new Slot(msg);
+        if (indexed) {
+            pendingByKey.put(slot.key, slot);
+        }
+        queue.add(slot);
+        return true;
+    }
+
+    /**
+     * Claim room for one message. Counting it before it is queued is what keeps concurrent posters from all
+     * seeing the last free place and overshooting the capacity.
+     * @return false if the outbox is full
+     */
+    protected boolean reserve() {
+        int current;
+        do {
+            current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Drop the oldest message. If there is none yet, the room is held by posters which have reserved it but not
+     * queued their message, so give them a chance to.
+     */
+    protected void makeRoom() {
+        if (!dropOldest()) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @param msg
+     * @return whether msg should replace an unsent message with the same key. Only notifications are conflated.
+     */
+    protected boolean isConflated(MOOSMsg msg) {
+        if (!msg.isType(MOOSMsg.MOOS_NOTIFY)) {
+            return false;
+        }
+        return conflateAll || (!conflatedKeys.isEmpty() && msg.getKey() != null && conflatedKeys.contains(msg.getKey()));
+    }
+
+    /**
+     * Swap a notification for an unsent notification with the same key, keeping its place in the queue. Only
+     * notifications are indexed, so registrations, server requests and the like are never overwritten.
+     * @param msg
+     * @return false if msg isn't a notification or there is no unsent notification with that key
+     */
+    protected boolean replace(MOOSMsg msg) {
+        if (!msg.isType(MOOSMsg.MOOS_NOTIFY)) {
+            return false;
+        }
+        Slot slot = pendingByKey.get(msg.getKey() == null ? "" : msg.getKey());
+        if (slot != null) {
+            MOOSMsg old = slot.get();
+            if (old != null && slot.compareAndSet(old, msg)) { // fails if the I/O thread took it in the meantime
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the queue was empty
+     */
+    protected boolean dropOldest() {
+        Slot slot = queue.poll();
+        if (slot == null) {
+            return false;
+        }
+        size.decrementAndGet();
+        pendingByKey.remove(slot.key, slot);
+        if (slot.getAndSet(null) != null) {
+            droppedOldestCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * @param deadline when to give up, in ms
+     * @return whether room was made before the deadline
+     */
+    protected boolean awaitRoom(long deadline) {
+        synchronized (notFull) {
+            blockedCount++;
+            try {
+                long wait;
+                while (size.get() >= capacity && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    notFull.wait(wait);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                blockedCount--;
+            }
+        }
+        return size.get() < capacity;
+    }
+
+    /**
+     * Move every queued message into the collection in the order they were posted. Only the I/O thread should call this.
+     * @param messages
+     * @return the number of messages moved
+     */
+    public int drainTo(Collection<MOOSMsg> messages) {
+        int count = 0;
+        Slot slot;
+        while ((slot = queue.poll()) != null) {
+            size.decrementAndGet();
+            pendingByKey.remove(slot.key, slot);
+            MOOSMsg msg = slot.getAndSet(null);
+            if (msg != null) {
+                messages.add(msg);
+                count++;
+            }
+        }
+        if (blockedCount > 0) {
+            synchronized (notFull) {
+                notFull.notifyAll();
+            }
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return the number of unsent messages
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Throw away all unsent messages (not counted as dropped).
+     */
+    public void clear() {
+        Slot slot;
+        while ((slot = queue.poll()) != null) {
+            size.decrementAndGet();
+            slot.set(null);
+        }
+        pendingByKey.clear();
+        if (blockedCount > 0) {
+            synchronized (notFull) {
+                notFull.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity the number of unsent messages held before the overflow policy kicks in
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("MOOSOutbox: capacity must be at least 1, not " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the overflowPolicy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy what to do when a message is posted to a full outbox
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the block timeout in ms
+     */
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * @param blockTimeout how long in ms a post() waits for room under OverflowPolicy.BLOCK
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * @param key
+     * @return whether notifications of key are conflated
+     */
+    public boolean isConflated(String key) {
+        return conflateAll || conflatedKeys.contains(key);
+    }
+
+    /**
+     * @param key variable name
+     * @param conflate true to only ever hold the newest unsent notification of key
+     */
+    public void setConflated(String key, boolean conflate) {
+        if (conflate) {
+            conflatedKeys.add(key);
+        } else {
+            conflatedKeys.remove(key);
+        }
+    }
+
+    /**
+     * @return whether every key is conflated
+     */
+    public boolean isConflateAll() {
+        return conflateAll;
+    }
+
+    /**
+     * @param conflateAll true to conflate notifications of every key, false to only conflate those given to setConflated()
+     */
+    public void setConflateAll(boolean conflateAll) {
+        this.conflateAll = conflateAll;
+    }
+
+    /**
+     * @return the number of unsent notifications replaced by a newer value because their key is conflated. These are not counted as dropped.
+     */
+    public long getConflatedCount() {
+        return conflatedCount.get();
+    }
+
+    /**
+     * @return the number of unsent messages thrown away to make room for newer ones
+     */
+    public long getDroppedOldestCount() {
+        return droppedOldestCount.get();
+    }
+
+    /**
+     * @return the number of posted messages thrown away because the outbox was full (or stayed full under BLOCK)
+     */
+    public long getDroppedNewestCount() {
+        return droppedNewestCount.get();
+    }
+
+    /**
+     * @return the number of unsent messages overwritten by a newer one with the same key
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return the total number of messages which never got sent because of the overflow policy
+     */
+    public long getDroppedCount() {
+        return droppedOldestCount.get() + droppedNewestCount.get() + coalescedCount.get();
+    }
+}
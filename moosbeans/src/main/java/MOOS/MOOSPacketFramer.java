@@ -0,0 +1,242 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a stream of bytes from the MOOSDB into MOOS packets. It keeps one receive buffer, reads as much as the
+ * socket has to offer into it in one go, and then hands out every complete packet in the buffer; a partial packet
+ * at the end stays put until the rest of it arrives with a later read. This means one read call per burst of
+ * mail rather than two per packet.
+ *
+ * It does not depend on a socket, feed() takes bytes from anywhere (e.g. a recorded stream).
+ *
+ * Messages may keep pointing into the receive buffer after their packet has been handled (binary payloads do,
+ * see MOOSMsg.getBinaryBuffer()) by retaining getSharedBuffer(). While anyone does, the framer never moves or
+ * overwrites what is already in the buffer, it carries on in a fresh one from the pool instead.
+ *
+ * <pre>
+ * while ((count = framer.readFrom(socket)) &gt; 0) {
+ *     while ((packet = framer.nextPacket()) != null) {
+ *         pkt.setBytes(packet);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class MOOSPacketFramer {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    protected MOOSBufferPool pool;
+    protected ByteBuffer buffer; // bytes received but not yet handed out are between start and buffer.position()
+    protected MOOSSharedBuffer shared; // our reference to buffer
+    protected int start;
+    // statistics
+    protected long readCount;
+    protected long packetCount;
+
+    public MOOSPacketFramer() {
+        this(MOOSBufferPool.getInstance());
+    }
+
+    /**
+     * @param pool where the receive buffer is borrowed from
+     */
+    public MOOSPacketFramer(MOOSBufferPool pool) {
+        this.pool = pool;
+        buffer = pool.acquire(DEFAULT_BUFFER_SIZE);
+        buffer.limit(buffer.capacity());
+        shared = new MOOSSharedBuffer(pool, buffer);
+    }
+
+    /**
+     * Read whatever the channel has waiting, up to the free space in the buffer (which is made if there is none).
+     * Call nextPacket() until it returns null after each read.
+     * @param channel a non-blocking channel
+     * @return the number of bytes read, 0 if there were none waiting, -1 if the channel has been closed
+     * @throws IOException
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        makeRoom(1);
+        int count = channel.read(buffer);
+        if (count > 0) {
+            readCount++;
+        }
+        return count;
+    }
+
+    /**
+     * Append bytes to the stream as if they had been read from a socket.
+     * @param src the bytes, from its position to its limit. The position is moved to the limit.
+     */
+    public void feed(ByteBuffer src) {
+        makeRoom(src.remaining());
+        buffer.put(src);
+        readCount++;
+    }
+
+    /**
+     * @return the next complete packet, from the length field at position 0 to the limit, or null if the buffer doesn't hold a whole packet yet.
+     * The packet shares the receive buffer so is only valid until the next call to readFrom() or feed(), unless getSharedBuffer() is retained.
+     * @throws IOException if the stream doesn't look like MOOS packets
+     */
+    public ByteBuffer nextPacket() throws IOException {
+        int available = buffer.position() - start;
+        if (available < MOOSMsg.INT_SIZE_IN_BYTES) {
+            return null;
+        }
+        int length = packetLength();
+        if (available < length) {
+            return null;
+        }
+        ByteBuffer packet = buffer.duplicate();
+        packet.limit(start + length);
+        packet.position(start);
+        packet = packet.slice().order(MOOSMsg.MOOS_BYTE_ORDER);
+        start += length;
+        packetCount++;
+        return packet;
+    }
+
+    /**
+     * @return length of the packet at the start of the buffer, which must have 4 bytes
+     * @throws IOException if the length is impossible
+     */
+    protected int packetLength() throws IOException {
+        int length = buffer.getInt(start);
+        if (length < MOOSCommPkt.PACKET_HEADER_SIZE) {
+            throw new IOException("MOOSPacketFramer: corrupt packet length " + length);
+        }
+        if (length > MOOSCommPkt.DEFAULT_ASSUMMED_MAX_MOOS_MSG_SIZE) {
+            System.err.println("MOOSPacketFramer: Error! Packet Size > DEFAULT_ASSUMMED_MAX_MOOS_MSG_SIZE" + length + " -> If this is a size error it could crash us!!!");
+        }
+        return length;
+    }
+
+    /**
+     * Make sure there is room for at least the given number of bytes, and for the whole of the current packet if we know its length. Moves the partial packet to the front of the buffer, or to a bigger buffer.
+     * @param bytes
+     */
+    protected void makeRoom(int bytes) {
+        if (start > 0 && start == buffer.position()) {
+            // everything handed out, start again from the front of the buffer, or a new one if messages still point into this one
+            start = 0;
+            if (shared.isShared()) {
+                swapBuffer(pool.acquire(buffer.capacity()));
+            } else {
+                buffer.clear();
+            }
+        }
+        int available = buffer.position() - start;
+        int needed = available + bytes;
+        if (available >= MOOSMsg.INT_SIZE_IN_BYTES) {
+            int length = buffer.getInt(start);
+            if (length > needed) {
+                needed = length;
+            }
+        }
+        if (buffer.remaining() >= bytes && buffer.capacity() - start >= needed) {
+            return; // the rest of the packet fits where it is
+        }
+        ByteBuffer target = buffer;
+        if (needed > buffer.capacity() || shared.isShared()) {
+            target = pool.acquire(Math.max(needed, buffer.capacity()));
+            target.limit(target.capacity());
+        }
+        // move the unread bytes to the front of the target
+        buffer.limit(buffer.position());
+        buffer.position(start);
+        if (target == buffer) {
+            buffer.compact();
+        } else {
+            target.put(buffer);
+            swapBuffer(target);
+        }
+        start = 0;
+    }
+
+    /**
+     * Give up our reference to the receive buffer and carry on with target, which must have come from the pool.
+     * @param target
+     */
+    protected void swapBuffer(ByteBuffer target) {
+        shared.release();
+        buffer = target;
+        buffer.limit(buffer.capacity());
+        shared = new MOOSSharedBuffer(pool, buffer);
+    }
+
+    /**
+     * @return the receive buffer the packets handed out since the last read point into. retain() it to keep them valid.
+     */
+    public MOOSSharedBuffer getSharedBuffer() {
+        return shared;
+    }
+
+    /**
+     * Throw away anything buffered, i.e. on reconnecting.
+     */
+    public void reset() {
+        start = 0;
+        if (shared.isShared()) {
+            swapBuffer(pool.acquire(buffer.capacity()));
+        } else {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * @return the number of bytes held which haven't been handed out as packets yet
+     */
+    public int getPendingBytes() {
+        return buffer.position() - start;
+    }
+
+    /**
+     * @return the number of reads (or feeds) which returned data
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * @return the number of packets handed out
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+}
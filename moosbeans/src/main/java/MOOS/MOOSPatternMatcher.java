@@ -0,0 +1,301 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds which of a set of MOOSWildcards match a message, with something bound to each (a listener, an interval).
+ *
+ * The variable patterns are compiled into one trie, '*' and '?' being edges like any other character, and a name
+ * is matched by walking the trie with the set of nodes it could have reached so far, so patterns sharing a prefix
+ * such as NAV_X* and NAV_Y* are walked once. The bindings a name matches are then memoised, so each variable is
+ * only walked the first time it is seen (or after the patterns change): routing a message costs a hash lookup
+ * however many patterns there are. The source app patterns are checked against the few bindings that remain.
+ *
+ * Adding and removing patterns locks the matcher, matching a name seen before doesn't.
+ */
+public class MOOSPatternMatcher<T> {
+
+    public static final int MAX_MEMO = 4096;
+    protected static final Object[] NO_BINDINGS = new Object[0];
+
+    protected static class Node {
+
+        protected final boolean star; // reached through '*', so it can also swallow any character itself
+        protected HashMap<Character, Node> children;
+        protected Node any; // '?'
+        protected Node next; // '*'
+        protected ArrayList<Binding> bindings;
+
+        protected Node(boolean star) {
+            this.star = star;
+        }
+
+        protected Node child(char c) {
+            return children == null ? null : children.get(c);
+        }
+    }
+
+    protected static class Binding {
+
+        protected final MOOSWildcard wildcard;
+        protected final Object value;
+
+        protected Binding(MOOSWildcard wildcard, Object value) {
+            this.wildcard = wildcard;
+            this.value = value;
+        }
+    }
+    protected final Node root = new Node(false);
+    protected final ConcurrentHashMap<String, Object[]> memo = new ConcurrentHashMap<String, Object[]>();
+    protected int size;
+
+    /**
+     * @param wildcard
+     * @param value
+     * @return false if value was already bound to wildcard
+     */
+    public synchronized boolean add(MOOSWildcard wildcard, T value) {
+        Node node = root;
+        String pattern = wildcard.getVarPattern();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                if (node.star && pattern.charAt(i - 1) == '*') {
+                    continue; // "**" is the same as "*"
+                }
+                if (node.next == null) {
+                    node.next = new Node(true);
+                }
+                node = node.next;
+            } else if (c == '?') {
+                if (node.any == null) {
+                    node.any = new Node(false);
+                }
+                node = node.any;
+            } else {
+                if (node.children == null) {
+                    node.children = new HashMap<Character, Node>();
+                }
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node(false);
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+        }
+        if (node.bindings == null) {
+            node.bindings = new ArrayList<Binding>();
+        }
+        for (Binding b : node.bindings) {
+            if (b.value == value && b.wildcard.equals(wildcard)) {
+                return false;
+            }
+        }
+        node.bindings.add(new Binding(wildcard, value));
+        size++;
+        memo.clear();
+        return true;
+    }
+
+    /**
+     * @param wildcard
+     * @param value
+     * @return false if value wasn't bound to wildcard
+     */
+    public synchronized boolean remove(MOOSWildcard wildcard, T value) {
+        Node node = find(wildcard.getVarPattern());
+        if (node == null || node.bindings == null) {
+            return false;
+        }
+        for (int i = 0; i < node.bindings.size(); i++) {
+            Binding b = node.bindings.get(i);
+            if (b.value == value && b.wildcard.equals(wildcard)) {
+                node.bindings.remove(i);
+                size--;
+                memo.clear();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param wildcard
+     * @return whether anything is bound to wildcard
+     */
+    public synchronized boolean contains(MOOSWildcard wildcard) {
+        Node node = find(wildcard.getVarPattern());
+        if (node != null && node.bindings != null) {
+            for (Binding b : node.bindings) {
+                if (b.wildcard.equals(wildcard)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    protected Node find(String pattern) {
+        Node node = root;
+        for (int i = 0; i < pattern.length() && node != null; i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                if (!(node.star && pattern.charAt(i - 1) == '*')) {
+                    node = node.next;
+                }
+            } else {
+                node = c == '?' ? node.any : node.child(c);
+            }
+        }
+        return node;
+    }
+
+    public synchronized void clear() {
+        root.children = null;
+        root.any = null;
+        root.next = null;
+        root.bindings = null;
+        size = 0;
+        memo.clear();
+    }
+
+    /**
+     * @return the number of bindings
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param var a variable name
+     * @param app the app which published it, null matches only patterns for any app
+     * @param out where to add the values bound to every matching wildcard
+     * @return the number added
+     */
+    @SuppressWarnings("unchecked")
+    public int match(String var, String app, Collection<? super T> out) {
+        Object[] bindings = memo.get(var);
+        if (bindings == null) {
+            bindings = walk(var);
+        }
+        int n = 0;
+        for (Object o : bindings) {
+            Binding b = (Binding) o;
+            if (b.wildcard.matchesApp(app)) {
+                out.add((T) b.value);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Like match(), but for every source: the caller gets the wildcards too so it can check the source later.
+     * @param var a variable name
+     * @param wildcards where to add each matching wildcard
+     * @param values where to add the value bound to it, in step with wildcards
+     */
+    @SuppressWarnings("unchecked")
+    public void match(String var, Collection<? super MOOSWildcard> wildcards, Collection<? super T> values) {
+        Object[] bindings = memo.get(var);
+        if (bindings == null) {
+            bindings = walk(var);
+        }
+        for (Object o : bindings) {
+            Binding b = (Binding) o;
+            wildcards.add(b.wildcard);
+            values.add((T) b.value);
+        }
+    }
+
+    /**
+     * @param var
+     * @return whether any pattern matches var, whatever its source
+     */
+    public boolean matchesAny(String var) {
+        Object[] bindings = memo.get(var);
+        return (bindings != null ? bindings : walk(var)).length > 0;
+    }
+
+    protected synchronized Object[] walk(String var) {
+        ArrayList<Node> active = new ArrayList<Node>();
+        HashSet<Node> seen = new HashSet<Node>();
+        reach(root, active, seen);
+        ArrayList<Node> next = new ArrayList<Node>();
+        for (int i = 0; i < var.length() && !active.isEmpty(); i++) {
+            char c = var.charAt(i);
+            seen.clear();
+            for (Node node : active) {
+                if (node.star) {
+                    reach(node, next, seen);
+                }
+                reach(node.child(c), next, seen);
+                reach(node.any, next, seen);
+            }
+            ArrayList<Node> t = active;
+            active = next;
+            next = t;
+            next.clear();
+        }
+        ArrayList<Binding> matched = new ArrayList<Binding>();
+        for (Node node : active) {
+            if (node.bindings != null) {
+                matched.addAll(node.bindings);
+            }
+        }
+        Object[] bindings = matched.isEmpty() ? NO_BINDINGS : matched.toArray();
+        if (memo.size() >= MAX_MEMO) {
+            memo.clear(); // a stream of unique names mustn't fill the heap
+        }
+        memo.put(var, bindings);
+        return bindings;
+    }
+
+    /**
+     * Add node, and the '*' nodes which can be reached from it without consuming a character.
+     */
+    protected void reach(Node node, ArrayList<Node> active, HashSet<Node> seen) {
+        while (node != null && seen.add(node)) {
+            active.add(node);
+            node = node.next;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A handle for publishing one variable over and over without making a MOOSMsg each time. Get one from
+ * MOOSCommClient.getDoublePublisher() or getStringPublisher(). Everything about the message except its value and
+ * time is encoded once when the handle is made, and publishing just stores the new value and marks the handle dirty.
+ * The next time the client flushes, its I/O thread writes each dirty handle straight into the outgoing packet.
+ *
+ * A handle holds one value, so if it is published faster than the client flushes only the newest value is sent
+ * (in the same way as a conflated key in the MOOSOutbox).
+ */
+public abstract class MOOSPublisher {
+
+    protected final MOOSCommClient client;
+    protected final String key;
+    protected final byte[] header; // type bytes, source, aux, community and key, encoded
+    protected final int fixedSize; // bytes of every message apart from the string data
+    protected boolean dirty;
+    protected double time;
+    // statistics
+    protected long publishedCount;
+    protected long sentCount;
+
+    protected MOOSPublisher(MOOSCommClient client, String key, char dataType, String source) {
+        this.client = client;
+        this.key = key;
+        byte[] sourceBytes = MOOSStringTable.intern(source);
+        byte[] keyBytes = MOOSStringTable.intern(key);
+        int length = 2 * MOOSMsg.BYTE_SIZE_IN_BYTES + 3 * MOOSMsg.INT_SIZE_IN_BYTES + sourceBytes.length + keyBytes.length;
+        if (!MOOSMsg.DISABLE_AUX_SOURCE) {
+            length += MOOSMsg.INT_SIZE_IN_BYTES;
+        }
+        ByteBuffer buffer = MOOSMsg.allocate(length);
+        buffer.put((byte) MOOSMsg.MOOS_NOTIFY);
+        buffer.put((byte) dataType);
+        buffer.putInt(sourceBytes.length).put(sourceBytes);
+        if (!MOOSMsg.DISABLE_AUX_SOURCE) {
+            buffer.putInt(0); // no aux source
+        }
+        buffer.putInt(0); // the MOOSDB fills in the community
+        buffer.putInt(keyBytes.length).put(keyBytes);
+        header = buffer.array();
+        fixedSize = 2 * MOOSMsg.INT_SIZE_IN_BYTES + length + 3 * MOOSMsg.DOUBLE_SIZE_IN_BYTES + MOOSMsg.INT_SIZE_IN_BYTES;
+    }
+
+    /**
+     * Mark the handle as holding a new value and get the client to flush. Call with the lock held.
+     * @param time of the value, -1 for now
+     */
+    protected void published(double time) {
+        this.time = time == -1 ? MOOSMsg.moosTimeNow() : time;
+        dirty = true;
+        publishedCount++;
+        client.publisherDirty();
+    }
+
+    /**
+     * Called by the I/O thread to put the current value in a packet.
+     * @param buffer where to write the message
+     * @return the bytes written, 0 if there is nothing new to send, or minus the bytes needed if buffer hasn't room
+     */
+    protected synchronized int writeTo(ByteBuffer buffer) {
+        if (!dirty) {
+            return 0;
+        }
+        int size = fixedSize + getValueLength();
+        if (buffer.remaining() < size) {
+            return -size;
+        }
+        buffer.putInt(size);
+        buffer.putInt(client.nextMsgID.getAndIncrement());
+        buffer.put(header);
+        buffer.putDouble(time);
+        writeValue(buffer);
+        dirty = false;
+        sentCount++;
+        return size;
+    }
+
+    /**
+     * @return the length in bytes of the string data
+     */
+    protected abstract int getValueLength();
+
+    /**
+     * Write the double, the unused second double and the string data.
+     * @param buffer
+     */
+    protected abstract void writeValue(ByteBuffer buffer);
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return whether there is a value waiting to be sent
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * @return the number of values published through this handle
+     */
+    public synchronized long getPublishedCount() {
+        return publishedCount;
+    }
+
+    /**
+     * @return the number of values sent, less than getPublishedCount() if values were replaced before they went
+     */
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+}
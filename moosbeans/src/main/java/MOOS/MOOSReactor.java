@@ -0,0 +1,204 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared I/O reactor: a small fixed pool of MOOSSelectorLoop threads which serve any number of MOOSCommClients,
+ * plus one connector thread which does the (slow) connect and handshake for each client before handing it to the
+ * least loaded loop. The thread count stays the same however many connections are attached.
+ *
+ * Usage:
+ * <pre>
+ * MOOSReactor reactor = new MOOSReactor(2);
+ * reactor.setEnable(true);
+ * client.setReactor(reactor);
+ * client.setEnable(true);
+ * </pre>
+ */
+public class MOOSReactor implements Runnable {
+
+    private static MOOSReactor singletonInstance = null;
+    public static final int DEFAULT_LOOP_COUNT = 2;
+    public static final long RECONNECT_DELAY = 200; // ms, same pause as the MOOSCommClient thread
+    protected MOOSSelectorLoop[] loops;
+    protected LinkedBlockingQueue<MOOSCommClient> connectQueue;
+    protected Thread theThread;
+    protected volatile boolean enable; // whether the threads are running or not.
+
+    /**
+     * @param loopCount number of selector threads to spread the connections over
+     * @throws IOException if a selector can't be opened
+     */
+    public MOOSReactor(int loopCount) throws IOException {
+        loops = new MOOSSelectorLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new MOOSSelectorLoop();
+            loops[i].reactor = this;
+        }
+        connectQueue = new LinkedBlockingQueue<MOOSCommClient>();
+    }
+
+    /**
+     * Lets us share one reactor across the whole process, started on first use.
+     */
+    public synchronized static MOOSReactor getInstance() throws IOException {
+        if (singletonInstance == null) {
+            singletonInstance = new MOOSReactor(DEFAULT_LOOP_COUNT);
+            singletonInstance.setEnable(true);
+        }
+        return singletonInstance;
+    }
+
+    /**
+     * Queue a client to be connected (unless it already is, see MOOSCommClient.tryToConnect()), handshaken and attached to a loop.
+     * @param client
+     */
+    public void connect(MOOSCommClient client) {
+        connectQueue.add(client);
+    }
+
+    /**
+     * Called by a loop when it loses a client. Enabled clients are reconnected if they want to be, the rest are shut down.
+     * @param client
+     */
+    protected void detached(MOOSCommClient client) {
+        if (client.enable && client.isAutoReconnect()) {
+            client.closeConnection();
+            client.reconnectTime = System.currentTimeMillis() + RECONNECT_DELAY;
+            connectQueue.add(client);
+        } else {
+            client.disconnectFromServer();
+        }
+    }
+
+    /**
+     * @return the loop serving the fewest clients
+     */
+    protected MOOSSelectorLoop leastLoaded() {
+        MOOSSelectorLoop best = loops[0];
+        for (MOOSSelectorLoop loop : loops) {
+            if (loop.getClientCount() < best.getClientCount()) {
+                best = loop;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The connector thread.
+     */
+    @Override
+    public void run() {
+        while (enable) {
+            MOOSCommClient client;
+            try {
+                client = connectQueue.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (client == null || !client.enable) {
+                continue;
+            }
+            long wait = client.reconnectTime - System.currentTimeMillis();
+            if (wait > 0) {
+                connectQueue.add(client); // not yet, let the others have a go
+                try {
+                    Thread.sleep(Math.min(wait, 10));
+                } catch (InterruptedException ex) {
+                }
+                continue;
+            }
+            try {
+                if (client.establishConnection()) {
+                    client.manualConnect = false;
+                    leastLoaded().attach(client);
+                    continue;
+                }
+            } catch (Exception e) {
+                System.out.println("CAUGHT EXCEPTION: ");
+                e.printStackTrace();
+            }
+            client.manualConnect = false;
+            detached(client);
+        }
+    }
+
+    /**
+     * @return the number of threads this reactor runs, which does not depend on the number of clients
+     */
+    public int getThreadCount() {
+        return loops.length + 1;
+    }
+
+    /**
+     * @return the number of clients attached to the loops
+     */
+    public int getClientCount() {
+        int count = 0;
+        for (MOOSSelectorLoop loop : loops) {
+            count += loop.getClientCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the enable
+     */
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /** Set to true to start the threads
+     * @param enable the enable to set
+     */
+    public void setEnable(boolean enable) {
+        if (!this.enable && enable) {
+            this.enable = enable;
+            for (MOOSSelectorLoop loop : loops) {
+                loop.setEnable(true);
+            }
+            theThread = new Thread(this);
+            theThread.start();
+        } else if (this.enable && !enable) {
+            this.enable = enable;
+            for (MOOSSelectorLoop loop : loops) {
+                loop.setEnable(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The reply to a request sent to the MOOSDB, such as MOOSCommClient.serverRequest(), which arrives some time later.
+ *
+ * The receive thread completes it with every message in the replying packet which carries the request's message
+ * ID. Rather than blocking in get(), an app can setCallback() to hear about the reply (or the failure) as soon as
+ * it arrives; callbacks run on the receive thread, so they should be quick. A request which hasn't been answered
+ * in time fails with a TimeoutException, raised by one daemon Timer shared by every request, so nobody sits
+ * sleeping and polling the inbox for a reply as the C++ ServerRequest() does.
+ *
+ * (This is a Future with a callback rather than a CompletableFuture so that it runs on Java 7 and Android.)
+ */
+public class MOOSRequestFuture implements Future<List<MOOSMsg>> {
+
+    /**
+     * Told when a request completes.
+     */
+    public interface Callback {
+
+        /**
+         * @param reply the messages making up the reply
+         */
+        public void onReply(List<MOOSMsg> reply);
+
+        /**
+         * @param cause a TimeoutException, an IOException if the connection went, or CancellationException
+         */
+        public void onFailure(Throwable cause);
+    }
+    protected static Timer timer;
+    protected final int msgID;
+    protected final CountDownLatch done = new CountDownLatch(1);
+    protected List<MOOSMsg> reply;
+    protected Throwable failure;
+    protected boolean cancelled;
+    protected List<Callback> callbacks;
+    protected TimerTask timeout;
+    protected Queue<MOOSRequestFuture> waiters; // the client's queue of requests waiting for msgID, which we leave when done
+
+    /**
+     * @param msgID the message ID the reply will carry
+     */
+    public MOOSRequestFuture(int msgID) {
+        this.msgID = msgID;
+    }
+
+    protected static synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("MOOSRequestTimer", true);
+        }
+        return timer;
+    }
+
+    /**
+     * Fail with a TimeoutException if there is no reply within timeout.
+     * @param timeoutMillis
+     */
+    public synchronized void setTimeout(long timeoutMillis) {
+        if (isDone() || timeoutMillis <= 0) {
+            return;
+        }
+        timeout = new TimerTask() {
+
+            @Override
+            public void run() {
+                fail(new TimeoutException("No reply to message " + msgID + " from the MOOSDB"));
+            }
+        };
+        getTimer().schedule(timeout, timeoutMillis);
+    }
+
+    protected synchronized void setWaiters(Queue<MOOSRequestFuture> waiters) {
+        this.waiters = waiters;
+    }
+
+    /**
+     * @param reply
+     * @return false if it was already done (timed out, say), in which case the reply should go to somebody else
+     */
+    public boolean complete(List<MOOSMsg> reply) {
+        List<Callback> toCall;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.reply = Collections.unmodifiableList(reply);
+            toCall = finish();
+        }
+        for (Callback callback : toCall) {
+            try {
+                callback.onReply(this.reply);
+            } catch (Exception e) {
+                System.out.println("CAUGHT EXCEPTION: ");
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param cause
+     * @return false if it was already done
+     */
+    public boolean fail(Throwable cause) {
+        List<Callback> toCall;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.failure = cause;
+            toCall = finish();
+        }
+        for (Callback callback : toCall) {
+            try {
+                callback.onFailure(cause);
+            } catch (Exception e) {
+                System.out.println("CAUGHT EXCEPTION: ");
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    protected List<Callback> finish() {
+        done.countDown();
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (waiters != null) {
+            waiters.remove(this);
+        }
+        List<Callback> toCall = callbacks == null ? Collections.<Callback>emptyList() : callbacks;
+        callbacks = null;
+        return toCall;
+    }
+
+    /**
+     * @param callback called once with the reply or failure, straight away if the request is already done
+     */
+    public void setCallback(Callback callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<Callback>(1);
+                }
+                callbacks.add(callback);
+                return;
+            }
+        }
+        if (reply != null) {
+            callback.onReply(reply);
+        } else {
+            callback.onFailure(failure);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+        }
+        return fail(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public List<MOOSMsg> get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public List<MOOSMsg> get(long time, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(time, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    protected synchronized List<MOOSMsg> result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        } else if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return reply;
+    }
+
+    /**
+     * @return the message ID the reply will carry
+     */
+    public int getMsgID() {
+        return msgID;
+    }
+}
@@ -0,0 +1,239 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop built on a java.nio Selector which drives one or more connected MOOSCommClients.
+ * Instead of sleeping for a whole tick between calls to iterate(), the loop wakes as soon as the socket
+ * has data to read, the socket can accept more data (a partly written packet), a client posts new mail,
+ * or the client's fundamental frequency tick comes round. Each wake up calls the client's iterate().
+ *
+ * A client in MOOSCommClient.SELECTOR_IO_MODE creates a private loop and runs it on its own thread, or a
+ * MOOSReactor runs a few loops which are shared by many clients.
+ */
+public class MOOSSelectorLoop implements Runnable {
+
+    protected Selector selector;
+    protected ArrayList<MOOSCommClient> clients;
+    protected ConcurrentLinkedQueue<MOOSCommClient> pendingAttach;
+    protected MOOSReactor reactor; // owner of this loop, if shared
+    protected Thread theThread;
+    protected volatile boolean enable; // whether this thread is running or not.
+
+    public MOOSSelectorLoop() throws IOException {
+        selector = Selector.open();
+        clients = new ArrayList<MOOSCommClient>();
+        pendingAttach = new ConcurrentLinkedQueue<MOOSCommClient>();
+    }
+
+    /**
+     * Hand a connected (handshaken) client to this loop. The client is registered with the selector on the loop thread.
+     * @param client
+     */
+    public void attach(MOOSCommClient client) {
+        pendingAttach.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Wake the loop up early, i.e. because a client has new mail in its outbox.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * @param client
+     * @return whether the client is currently being served by this loop
+     */
+    public boolean isAttached(MOOSCommClient client) {
+        return client.selectorLoop == this && client.selectionKey != null && client.selectionKey.isValid();
+    }
+
+    /**
+     * @return the number of clients attached or waiting to be attached
+     */
+    public int getClientCount() {
+        return clients.size() + pendingAttach.size();
+    }
+
+    /**
+     * Runs one round of the loop: wait for readiness or the next tick and service every client that needs it.
+     * @return the number of clients still attached
+     */
+    public int iterate() throws IOException {
+        registerPending();
+
+        long timeNow = System.currentTimeMillis();
+        long timeout = Long.MAX_VALUE;
+        for (MOOSCommClient client : clients) {
+            timeout = Math.min(timeout, client.nextTickTime - timeNow);
+        }
+        if (timeout <= 0) {
+            selector.selectNow();
+        } else if (timeout == Long.MAX_VALUE) {
+            selector.select(); // nobody attached, wait for attach() to wake us
+        } else {
+            selector.select(timeout);
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            MOOSCommClient client = (MOOSCommClient) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    client.writePending();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    client.iterate();
+                    client.nextTickTime = System.currentTimeMillis() + client.getTickPeriod();
+                }
+            } catch (Exception e) {
+                System.out.println("CAUGHT EXCEPTION: ");
+                e.printStackTrace();
+                client.closeConnection();
+            }
+        }
+
+        timeNow = System.currentTimeMillis();
+        Iterator<MOOSCommClient> clientIt = clients.iterator();
+        while (clientIt.hasNext()) {
+            MOOSCommClient client = clientIt.next();
+            if (client.enable && client.isConnected() && (client.flushRequested || timeNow >= client.nextTickTime)) {
+                try {
+                    client.flushRequested = false;
+                    client.iterate();
+                    client.nextTickTime = timeNow + client.getTickPeriod();
+                } catch (Exception e) {
+                    System.out.println("CAUGHT EXCEPTION: ");
+                    e.printStackTrace();
+                    client.closeConnection();
+                }
+            }
+            if (!client.enable || !client.isConnected()) {
+                detach(client);
+                clientIt.remove();
+                if (reactor != null) {
+                    reactor.detached(client);
+                }
+            }
+        }
+        return clients.size();
+    }
+
+    protected void registerPending() {
+        MOOSCommClient client;
+        while ((client = pendingAttach.poll()) != null) {
+            try {
+                client.selectorLoop = this;
+                client.selectionKey = client.socket.register(selector, SelectionKey.OP_READ, client);
+                client.nextTickTime = System.currentTimeMillis(); // tick straight away
+                clients.add(client);
+            } catch (ClosedChannelException e) {
+                MOOSMsg.moosTrace("MOOSSelectorLoop: client socket closed before it could be attached\n");
+                client.selectionKey = null;
+            }
+        }
+    }
+
+    protected void detach(MOOSCommClient client) {
+        if (client.selectionKey != null) {
+            client.selectionKey.cancel();
+            client.selectionKey = null;
+        }
+        client.selectorLoop = null;
+        client.pendingTx = null;
+    }
+
+    @Override
+    public void run() {
+        while (enable) {
+            try {
+                iterate();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        close();
+    }
+
+    /**
+     * Detach all clients and release the selector
+     */
+    public void close() {
+        for (MOOSCommClient client : clients) {
+            detach(client);
+            if (reactor != null) {
+                client.disconnectFromServer();
+            }
+        }
+        clients.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the enable
+     */
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /** Set to true to start the Thread
+     * @param enable the enable to set
+     */
+    public void setEnable(boolean enable) {
+        if (!this.enable && enable) {
+            theThread = new Thread(this);
+            this.enable = enable;
+            theThread.start();
+        } else if (this.enable && !enable) {
+            this.enable = enable;
+            selector.wakeup();
+        }
+    }
+}
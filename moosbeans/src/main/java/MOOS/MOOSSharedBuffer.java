@@ -0,0 +1,101 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled buffer shared by several owners, e.g. a receive buffer and the binary messages which point into it.
+ * Each owner calls retain() to take its reference and release() when it is done, and the buffer goes back to the
+ * pool when the last reference is released. Forgetting to release only means the buffer is left to the garbage
+ * collector instead of being reused, nothing breaks.
+ */
+public class MOOSSharedBuffer {
+
+    protected final MOOSBufferPool pool;
+    protected final ByteBuffer buffer;
+    protected final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * @param pool where the buffer goes back to
+     * @param buffer a buffer acquired from pool. The caller holds the first reference.
+     */
+    public MOOSSharedBuffer(MOOSBufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Take another reference.
+     * @return this
+     */
+    public MOOSSharedBuffer retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("MOOSSharedBuffer: retain() after the last release()");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Give up a reference, returning the buffer to the pool if it was the last.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            pool.release(buffer);
+        } else if (count < 0) {
+            throw new IllegalStateException("MOOSSharedBuffer: released more times than retained");
+        }
+    }
+
+    /**
+     * @return whether anyone other than the first owner holds a reference, in which case the contents must be left alone
+     */
+    public boolean isShared() {
+        return refCount.get() > 1;
+    }
+
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
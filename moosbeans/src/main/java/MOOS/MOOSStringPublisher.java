@@ -0,0 +1,86 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Publishes a string to one variable, see MOOSPublisher. The string is encoded when it is published, and
+ * publishing the same String instance again reuses the encoding.
+ */
+public class MOOSStringPublisher extends MOOSPublisher {
+
+    protected String value;
+    protected byte[] valueBytes = new byte[0];
+
+    protected MOOSStringPublisher(MOOSCommClient client, String key, String source) {
+        super(client, key, MOOSMsg.MOOS_STRING, source);
+    }
+
+    /**
+     * @param value
+     * @param time of the value, -1 for now
+     */
+    public synchronized void publish(String value, double time) {
+        if (value != this.value) {
+            this.valueBytes = MOOSStringTable.encode(value);
+            this.value = value;
+        }
+        published(time);
+    }
+
+    public void publish(String value) {
+        publish(value, -1);
+    }
+
+    @Override
+    protected int getValueLength() {
+        return valueBytes.length;
+    }
+
+    @Override
+    protected void writeValue(ByteBuffer buffer) {
+        buffer.putDouble(-1);
+        buffer.putDouble(-1);
+        buffer.putInt(valueBytes.length);
+        buffer.put(valueBytes);
+    }
+
+    /**
+     * @return the last value published
+     */
+    public synchronized String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,194 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process wide table of the encoded bytes of the strings which repeat from message to message: variable names,
+ * source (process) names and community names. A client publishes the same few keys over and over, so each is
+ * encoded once and every later message copies the cached bytes instead of calling getBytes() again.
+ * The table stops growing at MAX_ENTRIES so that a stream of unique strings can't fill the heap.
+ * The arrays handed out are shared and must never be modified.
+ *
+ * It works the other way too: decode() looks received identifiers up by their raw bytes in a small open addressing
+ * table, and hands back the same String instance every time it sees the same bytes. Decoding a repeated key, source
+ * or community then allocates nothing, and while a string stays in the table comparing it by reference is enough
+ * to tell it apart from the others (equals() still works once it has been evicted).
+ */
+public class MOOSStringTable {
+
+    /** The wire encoding of every MOOS string. */
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+    public static final int MAX_ENTRIES = 4096;
+    protected static final byte[] EMPTY = new byte[0];
+    protected static final ConcurrentHashMap<String, byte[]> encodings = new ConcurrentHashMap<String, byte[]>();
+    // decode cache. Entries are immutable so racing I/O threads can only lose an entry, never see half of one.
+    public static final int DECODE_CACHE_SIZE = 1024; // must be a power of 2
+    public static final int MAX_DECODE_LENGTH = 64; // longer strings are unlikely to repeat
+    protected static final int DECODE_PROBES = 4;
+    protected static final Decoded[] decoded = new Decoded[DECODE_CACHE_SIZE];
+
+    protected static final class Decoded {
+
+        final byte[] bytes;
+        final int hash;
+        final String string;
+
+        Decoded(byte[] bytes, int hash, String string) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.string = string;
+        }
+    }
+
+    /**
+     * @param s a string which is likely to be seen again, e.g. a key
+     * @return s encoded for the wire, from the table if it has been seen before
+     */
+    public static byte[] intern(String s) {
+        if (s == null || s.length() == 0) {
+            return EMPTY;
+        }
+        byte[] bytes = encodings.get(s);
+        if (bytes == null) {
+            bytes = s.getBytes(CHARSET);
+            if (encodings.size() < MAX_ENTRIES) {
+                byte[] existing = encodings.putIfAbsent(s, bytes);
+                if (existing != null) {
+                    bytes = existing;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @param s a string which isn't worth keeping, e.g. a payload
+     * @return s encoded for the wire
+     */
+    public static byte[] encode(String s) {
+        if (s == null || s.length() == 0) {
+            return EMPTY;
+        }
+        return s.getBytes(CHARSET);
+    }
+
+    /**
+     * Decode a string which is likely to be seen again, e.g. a key, returning the cached instance if these bytes have been decoded before.
+     * The buffer's position is left alone.
+     * @param buffer
+     * @param position index of the first byte
+     * @param length in bytes
+     * @return the decoded string
+     */
+    public static String decode(ByteBuffer buffer, int position, int length) {
+        if (length <= 0) {
+            return "";
+        }
+        if (length > MAX_DECODE_LENGTH) {
+            return new String(copy(buffer, position, length), CHARSET);
+        }
+        int hash = hash(buffer, position, length);
+        int index = hash & (DECODE_CACHE_SIZE - 1);
+        for (int probe = 0; probe < DECODE_PROBES; probe++) {
+            Decoded entry = decoded[(index + probe) & (DECODE_CACHE_SIZE - 1)];
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && matches(entry.bytes, buffer, position, length)) {
+                return entry.string;
+            }
+        }
+        byte[] bytes = copy(buffer, position, length);
+        Decoded entry = new Decoded(bytes, hash, new String(bytes, CHARSET));
+        for (int probe = 0; probe < DECODE_PROBES; probe++) {
+            int slot = (index + probe) & (DECODE_CACHE_SIZE - 1);
+            if (decoded[slot] == null) {
+                decoded[slot] = entry;
+                return entry.string;
+            }
+        }
+        decoded[index] = entry; // all full, evict whoever lives in our home slot
+        return entry.string;
+    }
+
+    protected static int hash(ByteBuffer buffer, int position, int length) {
+        int hash = 0x811C9DC5; // FNV-1a
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (buffer.get(position + i) & 0xFF)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    protected static boolean matches(byte[] bytes, ByteBuffer buffer, int position, int length) {
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != buffer.get(position + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static byte[] copy(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + position, bytes, 0, length);
+        } else {
+            ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            source.get(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of strings in the table
+     */
+    public static int size() {
+        return encodings.size();
+    }
+
+    public static void clear() {
+        encodings.clear();
+        for (int i = 0; i < DECODE_CACHE_SIZE; i++) {
+            decoded[i] = null;
+        }
+    }
+}
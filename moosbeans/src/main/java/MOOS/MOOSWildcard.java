@@ -0,0 +1,147 @@
+/*   MOOS - Mission Oriented Operating Suite 
+ *
+ *   A suit of Applications and Libraries for Mobile Robotics Research
+ *   Copyright (C) 2001-2005 Massachusetts Institute of Technology and
+ *   Oxford University.
+ *
+ *   The original C++ version of this software was written by Paul Newman
+ *   at MIT 2001-2002 and Oxford University 2003-2005.
+ *   email: pnewman@robots.ox.ac.uk.
+ *
+ *   This Java version of MOOSClient is part of the MOOSBeans for Java
+ *   package written by Benjamin C. Davis at Oxford University 2010-2011
+ *   email: ben@robots.ox.ac.uk
+ *
+ *   This file is part of the MOOSBeans for Java package.
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU General Public License as
+ *   published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ *   02111-1307, USA.
+ *
+ *                      END_GPL
+ */
+package MOOS;
+
+/**
+ * A wildcard subscription: a pattern for variable names and one for the name of the app publishing them, as
+ * MOOS_WILDCARD_REGISTER takes. Patterns are globs, '*' matching any run of characters and '?' any one, so
+ * ("NAV_*", "*") is every NAV_ variable and ("*", "pHelmIvP") everything from the helm.
+ */
+public final class MOOSWildcard {
+
+    public static final String ANY = "*";
+    protected final String varPattern;
+    protected final String appPattern;
+
+    /**
+     * @param varPattern pattern for the variable name
+     * @param appPattern pattern for the source app, or null for any
+     */
+    public MOOSWildcard(String varPattern, String appPattern) {
+        this.varPattern = varPattern;
+        this.appPattern = appPattern == null || appPattern.length() == 0 ? ANY : appPattern;
+    }
+
+    /**
+     * @param s a variable name, or a pattern
+     * @return whether s contains any wildcard characters
+     */
+    public static boolean isPattern(String s) {
+        return s != null && (s.indexOf('*') >= 0 || s.indexOf('?') >= 0);
+    }
+
+    /**
+     * Match one glob, without compiling it. Linear in the length of s for patterns with a single '*'.
+     * @param pattern
+     * @param s
+     * @return whether pattern matches the whole of s
+     */
+    public static boolean globMatches(String pattern, String s) {
+        if (s == null) {
+            return false;
+        }
+        int p = 0, i = 0, starP = -1, starI = 0;
+        while (i < s.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == s.charAt(i))) {
+                p++;
+                i++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starP = p++;
+                starI = i;
+            } else if (starP >= 0) {
+                // let the last '*' swallow one more character and try again
+                p = starP + 1;
+                i = ++starI;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * @param var
+     * @param app
+     * @return whether a message for var from app is covered by this subscription
+     */
+    public boolean matches(String var, String app) {
+        return globMatches(varPattern, var) && matchesApp(app);
+    }
+
+    /**
+     * @param app
+     * @return whether the source app pattern matches
+     */
+    public boolean matchesApp(String app) {
+        return appPattern.equals(ANY) || globMatches(appPattern, app);
+    }
+
+    public String getVarPattern() {
+        return varPattern;
+    }
+
+    public String getAppPattern() {
+        return appPattern;
+    }
+
+    /**
+     * @param interval
+     * @return the string data of a MOOS_WILDCARD_REGISTER message
+     */
+    public String toRegistrationString(double interval) {
+        return new MOOSKeyValueBuilder().add("AppPattern", appPattern).add("VarPattern", varPattern).add("Interval", interval).toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MOOSWildcard)) {
+            return false;
+        }
+        MOOSWildcard w = (MOOSWildcard) o;
+        return varPattern.equals(w.varPattern) && appPattern.equals(w.appPattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * varPattern.hashCode() + appPattern.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return varPattern + "@" + appPattern;
+    }
+}
@@ -35,9 +35,19 @@
 package MOOS;
 
 /**
- *
+ * Thrown when a packet claims to be compressed but can't be inflated. The name dates from before compression was supported.
  * @author Benjamin C. Davis
  */
 public class NoJavaZipCompressionSupportYetException extends Exception {
 
+    public NoJavaZipCompressionSupportYetException() {
+    }
+
+    public NoJavaZipCompressionSupportYetException(String message) {
+        super(message);
+    }
+
+    public NoJavaZipCompressionSupportYetException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }